@@ -8,15 +8,28 @@ public class TCPSegment {
     private static final int DESTINATION_PORT_POSITION      = SOURCE_PORT_POSITION + 2;
     private static final int DATA_OFFSET_POSITION           = DESTINATION_PORT_POSITION + 2;
     private static final int SEQUENCE_NUMBER_POSITION       = DATA_OFFSET_POSITION + 2;
-    private static final int ACK_NUMBER_POSITION            = SEQUENCE_NUMBER_POSITION + 2;
-    private static final int FLAGS_POSITION                 = ACK_NUMBER_POSITION + 2;
-    private static final int DATA_OFFSET_MIN                = FLAGS_POSITION + 1;
+    private static final int ACK_NUMBER_POSITION            = SEQUENCE_NUMBER_POSITION + 4;
+    private static final int FLAGS_POSITION                 = ACK_NUMBER_POSITION + 4;
+    private static final int WINDOW_POSITION                = FLAGS_POSITION + 1;
+    private static final int DATA_OFFSET_MIN                = WINDOW_POSITION + 2;
 
     public static final byte ACK_BITMAP = (byte) 0b10000000;
     public static final byte SYN_BITMAP = (byte) 0b01000000;
     public static final byte FIN_BITMAP = (byte) 0b00100000;
+    public static final byte RST_BITMAP = (byte) 0b00010000;
+    // not a segment type: an ACK with it also acknowledges the segment whose number is in the seq field
+    public static final byte SACK_BITMAP = (byte) 0b00001000;
+    // not a segment type: another frame follows this one in the datagram, see frameLength()
+    public static final byte MORE_BITMAP = (byte) 0b00000100;
+    // not a segment type: the data of a SYN with it starts with a fast open cookie, a SYNACK with it carries one
+    public static final byte FASTOPEN_BITMAP = (byte) 0b00000010;
+    // not a segment type: the data starts with a stream frame header, see TOUStream
+    public static final byte STREAM_BITMAP = (byte) 0b00000001;
 
     public static final int HEADER_SIZE = DATA_OFFSET_MIN; // bytes;
+    // a frame with the MORE flag has its length right after the header
+    private static final int FRAME_LENGTH_POSITION = HEADER_SIZE;
+    public static final int FRAME_LENGTH_SIZE = 2; // bytes
 
     private ByteBuffer bb;
     private byte[] bytes;
@@ -73,6 +86,68 @@ public class TCPSegment {
         return getFlag(FIN_BITMAP);
     }
 
+    public void setRST (boolean value) {
+        setFlag(RST_BITMAP, value);
+    }
+
+    public boolean isRST () {
+        return getFlag(RST_BITMAP);
+    }
+
+    public void setSACK (boolean value) {
+        setFlag(SACK_BITMAP, value);
+    }
+
+    public boolean isSACK () {
+        return getFlag(SACK_BITMAP);
+    }
+
+    public void setMORE (boolean value) {
+        setFlag(MORE_BITMAP, value);
+    }
+
+    public boolean isMORE () {
+        return getFlag(MORE_BITMAP);
+    }
+
+    public void setFASTOPEN (boolean value) {
+        setFlag(FASTOPEN_BITMAP, value);
+    }
+
+    public boolean isFASTOPEN () {
+        return getFlag(FASTOPEN_BITMAP);
+    }
+
+    public void setSTREAM (boolean value) {
+        setFlag(STREAM_BITMAP, value);
+    }
+
+    public boolean isSTREAM () {
+        return getFlag(STREAM_BITMAP);
+    }
+
+    /**
+     * Marks the frame whose header is at the given index of the datagram as followed by another frame,
+     * the length of the frame goes right after the header and its data after the length.
+     */
+    public static void markLeadingFrame(ByteBuffer datagram, int start, int frameLength) {
+        datagram.put(start + FLAGS_POSITION, setFlagActive(datagram.get(start + FLAGS_POSITION), MORE_BITMAP));
+        datagram.putShort(start + DATA_OFFSET_POSITION, (short) (HEADER_SIZE + FRAME_LENGTH_SIZE));
+        datagram.putShort(start + FRAME_LENGTH_POSITION, (short) frameLength);
+    }
+
+    /**
+     * @return the length of the frame which starts a datagram of the given length, -1 if it is malformed
+     */
+    public static int frameLength(byte[] datagram, int offset, int length) {
+        if (length < HEADER_SIZE) return -1;
+        if (!getFlag(datagram[offset + FLAGS_POSITION], MORE_BITMAP)) return length;
+        if (length < HEADER_SIZE + FRAME_LENGTH_SIZE) return -1;
+
+        int frameLength = ByteBuffer.wrap(datagram, offset + FRAME_LENGTH_POSITION, FRAME_LENGTH_SIZE).getShort() & 0xffff;
+        return frameLength < HEADER_SIZE + FRAME_LENGTH_SIZE || frameLength > length ? -1 : frameLength;
+    }
+
     public byte flags() {
         return bytes[FLAGS_POSITION];
     }
@@ -124,28 +199,42 @@ public class TCPSegment {
         return unsignedShortToInt(bb.getShort(DESTINATION_PORT_POSITION));
     }
 
-    public void sequenceNumber(short sequenceNumber) {
-        bb.putShort(SEQUENCE_NUMBER_POSITION, sequenceNumber);
+    /**
+     * @param sequenceNumber the offset of the first data byte in the sender's byte stream, modulo 2^32
+     */
+    public void sequenceNumber(int sequenceNumber) {
+        bb.putInt(SEQUENCE_NUMBER_POSITION, sequenceNumber);
     }
 
-    public short sequenceNumber() {
-        return bb.getShort(SEQUENCE_NUMBER_POSITION);
+    public int sequenceNumber() {
+        return bb.getInt(SEQUENCE_NUMBER_POSITION);
     }
 
-    public void ackNumber(short ackNumber) {
-        bb.putShort(ACK_NUMBER_POSITION, ackNumber);
+    public void ackNumber(int ackNumber) {
+        bb.putInt(ACK_NUMBER_POSITION, ackNumber);
     }
 
-    public short ackNumber() {
-        return bb.getShort(ACK_NUMBER_POSITION);
+    public int ackNumber() {
+        return bb.getInt(ACK_NUMBER_POSITION);
     }
 
-    public int sequenceAndAckNumbers() {
-        return bb.getInt(SEQUENCE_NUMBER_POSITION);
+    /**
+     * @param window how many segments past the ack number the sender of this segment can take, up to 65535
+     */
+    public void window(int window) {
+        bb.putShort(WINDOW_POSITION, (short) window);
+    }
+
+    public int window() {
+        return unsignedShortToInt(bb.getShort(WINDOW_POSITION));
+    }
+
+    public long sequenceAndAckNumbers() {
+        return bb.getLong(SEQUENCE_NUMBER_POSITION);
     }
 
-    public void sequenceAndAckNumbers(int value) {
-        bb.putInt(SEQUENCE_NUMBER_POSITION, value);
+    public void sequenceAndAckNumbers(long value) {
+        bb.putLong(SEQUENCE_NUMBER_POSITION, value);
     }
 
     public byte[] bytes() {
@@ -161,14 +250,16 @@ public class TCPSegment {
     }
 
     public String typeByteToString() {
-        return String.valueOf(isSYN() ? 'S' : '-') + (isACK() ? 'A' : '-') + (isFIN() ? 'F' : '-');
+        return String.valueOf(isSYN() ? 'S' : '-') + (isACK() ? 'A' : '-') + (isFIN() ? 'F' : '-') +
+                (isRST() ? 'R' : '-') + (isSACK() ? 'K' : '-') + (isMORE() ? 'M' : '-') +
+                (isFASTOPEN() ? 'O' : '-') + (isSTREAM() ? 'T' : '-');
     }
 
     @Override
     public String toString() {
-        return String.format("%16s[%s seq: %5d ack: %5d src: %6d dst: %6d data offset: %3d size: %3d]",
-                TCPSegment.class.getSimpleName(), typeByteToString(), sequenceNumber() & 0xffff, ackNumber() & 0xffff,
-                sourcePort(), destinationPort(), dataOffset(), size());
+        return String.format("%16s[%s seq: %10d ack: %10d win: %5d src: %6d dst: %6d data offset: %3d size: %3d]",
+                TCPSegment.class.getSimpleName(), typeByteToString(), sequenceNumber() & 0xffffffffL, ackNumber() & 0xffffffffL,
+                window(), sourcePort(), destinationPort(), dataOffset(), size());
     }
 
     private static int unsignedShortToInt(short value) {
@@ -3,6 +3,7 @@ package ru.nsu.ccfit.bogush.tcp;
 import static ru.nsu.ccfit.bogush.tcp.TCPSegment.ACK_BITMAP;
 import static ru.nsu.ccfit.bogush.tcp.TCPSegment.SYN_BITMAP;
 import static ru.nsu.ccfit.bogush.tcp.TCPSegment.FIN_BITMAP;
+import static ru.nsu.ccfit.bogush.tcp.TCPSegment.RST_BITMAP;
 
 public enum TCPSegmentType {
     ORDINARY,
@@ -10,7 +11,8 @@ public enum TCPSegmentType {
     SYN (SYN_BITMAP),
     FIN (FIN_BITMAP),
     SYNACK ((byte) (SYN_BITMAP | ACK_BITMAP)),
-    FINACK ((byte) (FIN_BITMAP | ACK_BITMAP));
+    FINACK ((byte) (FIN_BITMAP | ACK_BITMAP)),
+    RST (RST_BITMAP);
 
     private final byte typeBitMap;
 
@@ -29,6 +31,10 @@ public enum TCPSegmentType {
         boolean a = p.isACK();
         boolean s = p.isSYN();
         boolean f = p.isFIN();
+        if (p.isRST()) {
+            if (!s && !a && !f) return RST;
+            throw new TCPUnknownSegmentTypeException();
+        }
         if (!s && !a && !f) return ORDINARY;
         if (!s &&  a && !f) return ACK;
         if ( s && !a && !f) return SYN;
@@ -0,0 +1,44 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ru.nsu.ccfit.bogush.tou.TOUConstants.BUFFER_POOL_SIZE;
+
+/**
+ * Direct buffers of the send rings which idle connections have given back, kept for the next ones
+ * which need a ring of the same size.
+ * <p>
+ * Direct memory is slow to allocate and is freed only after a GC, so a connection which wakes up
+ * now and then should not allocate a ring each time. The pool keeps tou.bufferPool bytes at most,
+ * the buffers past that are left to the GC.
+ */
+final class TOUBufferPool {
+    private static final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> BUFFERS =
+            new ConcurrentHashMap<>();
+    private static final AtomicLong POOLED = new AtomicLong();
+
+    private TOUBufferPool() {}
+
+    static ByteBuffer take(int capacity) {
+        ConcurrentLinkedQueue<ByteBuffer> buffers = BUFFERS.get(capacity);
+        ByteBuffer buffer = buffers == null ? null : buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        POOLED.addAndGet(-capacity);
+        buffer.clear();
+        return buffer;
+    }
+
+    static void give(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (POOLED.addAndGet(capacity) > BUFFER_POOL_SIZE) {
+            POOLED.addAndGet(-capacity);
+            return;
+        }
+        BUFFERS.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+}
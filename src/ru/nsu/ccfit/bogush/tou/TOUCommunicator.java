@@ -2,15 +2,24 @@ package ru.nsu.ccfit.bogush.tou;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import ru.nsu.ccfit.bogush.tcp.TCPSegment;
 import ru.nsu.ccfit.bogush.tcp.TCPSegmentType;
 import ru.nsu.ccfit.bogush.tcp.TCPUnknownSegmentTypeException;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.Objects;
-import java.util.WeakHashMap;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import static ru.nsu.ccfit.bogush.tcp.TCPSegmentType.*;
 import static ru.nsu.ccfit.bogush.tou.TOUConstants.*;
@@ -20,20 +29,40 @@ class TOUCommunicator {
     private static final Logger LOGGER = LogManager.getLogger("TOUCommunicator");
 
     private final DatagramSocket udpSocket;
-    private final DatagramPacket udpPacket;
-    private final ArrayBlockingQueue<TOUSegment> segments;
+    // the channel of udpSocket, non-blocking so that the Receiver drains it in batches
+    private final DatagramChannel channel;
+    // segments whose retransmission timers have fired
+    private final ConcurrentLinkedQueue<TOUSegment> retransmissions = new ConcurrentLinkedQueue<>();
+    // connections with buffered output, each one is queued at most once;
+    // low delay ones are served before the rest
+    private final ConcurrentLinkedQueue<TOUSocketImpl> interactive = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<TOUSocketImpl> ready = new ConcurrentLinkedQueue<>();
+    // work other threads leave for the Receiver, on what only it touches
+    private final ConcurrentLinkedQueue<Runnable> receiverTasks = new ConcurrentLinkedQueue<>();
     private final Sender sender;
     private final Receiver receiver;
-    private final WeakHashMap<InetSocketAddress, TOUSocketImpl> implMap;
+    private final ConcurrentHashMap<InetSocketAddress, TOUSocketImpl> implMap;
+    private final TOUTimeWaitTable timeWaitTable = new TOUTimeWaitTable(TIME_WAIT_TIMEOUT);
+    // the current batch of datagrams split by connection, touched by the Receiver thread only
+    private final LinkedHashMap<TOUSocketImpl, ConnectionBatch> batches = new LinkedHashMap<>();
+
+    /**
+     * The part of a batch of datagrams which goes to one connection, handed over to it at once.
+     */
+    private static final class ConnectionBatch {
+        final List<TOUSegment> acks = new ArrayList<>();
+        final List<TOUSegment> data = new ArrayList<>();
+        final List<TOUSystemMessage> messages = new ArrayList<>();
+    }
 
-    TOUCommunicator(WeakHashMap<InetSocketAddress, TOUSocketImpl> implMap, DatagramSocket udpSocket)
+    TOUCommunicator(ConcurrentHashMap<InetSocketAddress, TOUSocketImpl> implMap, DatagramSocket udpSocket)
             throws IOException {
         LOGGER.traceEntry();
 
         this.implMap = implMap;
         this.udpSocket = udpSocket;
-        this.udpPacket = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
-        this.segments = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.channel = udpSocket.getChannel();
+        channel.configureBlocking(false);
         this.sender = new Sender();
         this.receiver = new Receiver();
 
@@ -41,7 +70,7 @@ class TOUCommunicator {
     }
 
     private void processSegment(TOUSegment segment)
-            throws TCPUnknownSegmentTypeException {
+            throws TCPUnknownSegmentTypeException, IOException {
         LOGGER.traceEntry("{}", segment);
 
         InetSocketAddress local = new InetSocketAddress(segment.destinationAddress, segment.destinationPort());
@@ -52,127 +81,354 @@ class TOUCommunicator {
         TCPSegmentType type = segment.type();
         int dataSize = segment.tcpSegment.dataSize();
 
-        // check the presence of associated impls
-        if (type == ACK) {
-            if (associatedImpl == null && serverImpl == null) {
-                LOGGER.warn("no associated impl with address: {}", local);
-                LOGGER.warn("no associated impl with address: {}", remote);
-                return;
-            }
-
-            TOUSystemMessage ack = new TOUSystemMessage(segment, type);
+        if (associatedImpl == null && serverImpl != null && type != SYN) {
+            // the listener finishes the handshake and keeps what comes before accept()
+            if (serverImpl.handshakeSegment(segment, type)) return;
+            // or the connection has just been accepted
+            associatedImpl = implMap.get(remote);
+        }
 
-            removeByACK(ack);
+        if (type == RST) {
+            // never answer a reset with a reset
+            if (associatedImpl == null) {
+                LOGGER.debug("no associated impl with address: {}, ignore {}", remote, segment);
+            } else {
+                flushBatch(associatedImpl);
+                associatedImpl.dispatch(new TOUSystemMessage(segment, type));
+            }
+            return;
+        }
 
-            if (associatedImpl != null) {
-                associatedImpl.setSystemMessage(ack);
+        // check the presence of associated impls
+        if (type == ORDINARY) {
+            if (associatedImpl == null) {
+                noConnection(segment, type);
+            } else {
+                batchOf(associatedImpl).data.add(segment);
             }
+            return;
+        }
 
-            if (serverImpl != null) {
-                serverImpl.setSystemMessage(ack);
+        if (type == ACK) {
+            if (associatedImpl == null) {
+                noConnection(segment, type);
+                return;
             }
 
+            ConnectionBatch batch = batchOf(associatedImpl);
+            batch.acks.add(segment);
             if (dataSize > 0) {
-                if (associatedImpl == null) {
-                    LOGGER.warn("no associated impl with address: {}", remote);
-                } else {
-                    LOGGER.trace("segment with data");
-                    associatedImpl.processSegment(segment);
-                }
+                LOGGER.trace("segment with data");
+                batch.data.add(segment);
+            } else {
+                batch.messages.add(new TOUSystemMessage(segment, type));
             }
 
             return;
         }
 
-        if (type == FIN || type == FINACK || type == SYNACK) {
+        // the connection must see what came before the control message first
+        if (associatedImpl != null) {
+            flushBatch(associatedImpl);
+        }
+
+        // the SYNs and SYNACKs of fast open carry a cookie and data
+        TOUSystemMessage systemMessage = new TOUSystemMessage(segment, type, segment.tcpSegment.isFASTOPEN());
+
+        if (type == SYN) {
+            // a retransmitted SYN belongs to the connection which is already being accepted
+            TOUSocketImpl impl = associatedImpl != null ? associatedImpl : serverImpl;
+            if (impl == null) {
+                noConnection(segment, type);
+            } else {
+                impl.dispatch(systemMessage);
+            }
+        } else if (type == FIN || type == FINACK || type == SYNACK) {
             if (associatedImpl == null) {
-                LOGGER.warn("no associated impl with address: {}", remote);
-                return;
+                noConnection(segment, type);
+            } else {
+                associatedImpl.dispatch(systemMessage);
             }
-        } else if (type == SYN) {
-            if (serverImpl == null) {
-                LOGGER.warn("no associated impl with address: {}", local);
-                return;
+        } else {
+            throw new TCPUnknownSegmentTypeException();
+        }
+    }
+
+    private ConnectionBatch batchOf(TOUSocketImpl impl) {
+        return batches.computeIfAbsent(impl, i -> new ConnectionBatch());
+    }
+
+    /**
+     * Hands the part of the current batch addressed to the connection over to it: ACKs under one lock
+     * of its send queue, data with one wakeup of the reader, state changes under one lock of its monitor.
+     */
+    private void flushBatch(TOUSocketImpl impl) {
+        ConnectionBatch batch = batches.remove(impl);
+        if (batch == null) return;
+
+        if (!batch.acks.isEmpty()) {
+            impl.acknowledge(batch.acks);
+        }
+        if (!batch.data.isEmpty()) {
+            impl.processSegments(batch.data);
+        }
+        if (!batch.messages.isEmpty()) {
+            impl.dispatch(batch.messages);
+        }
+    }
+
+    private void processBatch(List<TOUSegment> batch)
+            throws IOException {
+        try {
+            for (TOUSegment segment : batch) {
+                try {
+                    processSegment(segment);
+                } catch (TCPUnknownSegmentTypeException e) {
+                    LOGGER.debug("drop {} of unknown type", segment);
+                } catch (RuntimeException e) {
+                    // the other connections of the communicator go on
+                    LOGGER.warn("drop {} which cannot be processed", segment, e);
+                }
+            }
+            while (!batches.isEmpty()) {
+                TOUSocketImpl impl = batches.keySet().iterator().next();
+                try {
+                    flushBatch(impl);
+                } catch (RuntimeException e) {
+                    batches.remove(impl);
+                    LOGGER.warn("drop the segments of a connection to {}:{} which cannot be processed",
+                            impl.address(), impl.port(), e);
+                }
             }
+        } finally {
+            // the ACKs of the batch
+            receiver.bundle.flush();
         }
+    }
 
-        TOUSystemMessage systemMessage = new TOUSystemMessage(segment, type);
+    /**
+     * Handles a segment which has no impl to go to. A connection in TIME_WAIT re-acknowledges
+     * the peer's FIN and drops anything else, an unknown one is reset.
+     */
+    private void noConnection(TOUSegment segment, TCPSegmentType type)
+            throws IOException {
+        if (!timeWaitTable.contains(new InetSocketAddress(segment.sourceAddress, segment.sourcePort()))) {
+            reset(segment);
+            return;
+        }
 
-        if (type == SYN) {
-            serverImpl.setSystemMessage(new TOUSystemMessage(segment, type));
-        } else if (type == FIN) {
-            associatedImpl.processFIN(systemMessage);
-        } else if (type == FINACK || type == SYNACK) {
-            associatedImpl.setSystemMessage(systemMessage);
+        if (type == FIN || type == FINACK) {
+            TOUSystemMessage ack = TOUFactory.createACK(new TOUSystemMessage(segment, type));
+            LOGGER.debug("send {}", ack);
+            send(TOUFactory.packIntoUDP(ack));
         } else {
-            throw new TCPUnknownSegmentTypeException();
+            LOGGER.trace("drop {} of a connection in TIME_WAIT", segment);
         }
     }
 
+    /**
+     * Remembers a closed connection for TIME_WAIT_TIMEOUT instead of its impl.
+     */
+    void timeWait(InetSocketAddress remote) {
+        timeWaitTable.add(remote);
+    }
+
+    /**
+     * Answers a segment addressed to an unknown or already closed connection, so that the peer
+     * gives up at once instead of retransmitting into the void until its timeouts expire.
+     */
+    private void reset(TOUSegment segment)
+            throws IOException {
+        LOGGER.debug("no associated impl with address: {}:{}, reset", segment.sourceAddress, segment.sourcePort());
+        TOUSystemMessage rst = TOUFactory.createRST(segment);
+        LOGGER.debug("send {}", rst);
+        send(TOUFactory.packIntoUDP(rst));
+    }
+
     void send(TOUSegment segment)
             throws IOException, InterruptedException {
         LOGGER.traceEntry("{}", () -> segment);
 
         LOGGER.debug("send {}", segment);
-        DatagramPacket packet = TOUFactory.packIntoUDP(segment);
-        send(packet);
+        Thread current = Thread.currentThread();
+        if (current == sender) {
+            sender.bundle.add(segment);
+        } else if (current == receiver) {
+            receiver.bundle.add(segment);
+        } else {
+            ByteBuffer datagram = ByteBuffer.allocate(TOUFactory.frameSize(segment));
+            TOUFactory.packFrame(segment, false, datagram);
+            datagram.flip();
+            send(datagram, segment.destinationAddress(), segment.destinationPort());
+        }
         if (segment.needsResending()) {
-            synchronized (segments) {
-                segments.put(segment);
-                segments.notifyAll();
-            }
+            TOUTimer.schedule(() -> retransmit(segment), segment.timeout());
         }
 
         LOGGER.traceExit();
     }
 
+    /**
+     * Hands a segment over to the Sender to be sent again, unless it is acknowledged by now.
+     */
+    void retransmit(TOUSegment segment) {
+        if (segment.isCancelled()) return;
+        retransmissions.offer(segment);
+        LockSupport.unpark(sender);
+    }
+
     private void send(DatagramPacket packet)
             throws IOException {
         LOGGER.trace("waiting to socket.send({})", () -> TOULog4JUtils.toString(packet));
-        udpSocket.send(packet);
+        send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()),
+                packet.getAddress(), packet.getPort());
         LOGGER.trace("sent {}", () -> TOULog4JUtils.toString(packet));
     }
 
+    /**
+     * Sends the datagram from its position to its limit.
+     */
+    private void send(ByteBuffer datagram, InetAddress address, int port)
+            throws IOException {
+        InetSocketAddress destination = new InetSocketAddress(address, port);
+        // an interrupt would close the channel for every connection on it, hold it off for the call
+        boolean interrupted = Thread.interrupted();
+        try {
+            // the channel is non-blocking, a full socket buffer is waited out here
+            while (channel.send(datagram, destination) == 0) {
+                Thread.yield();
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Called by the writers. Wakes the Sender up if it is waiting for something to send.
+     */
+    void outputReady(TOUSocketImpl impl) {
+        (impl.isInteractive() ? interactive : ready).offer(impl);
+        LockSupport.unpark(sender);
+    }
+
     private void sendSegment()
             throws IOException, InterruptedException {
         LOGGER.traceEntry();
 
-        TOUSegment segment = flushAvailableOutputStream();
+        // fresh output goes first, retransmissions fill the pauses
+        TOUSocketImpl impl = interactive.poll();
+        if (impl == null) {
+            impl = ready.poll();
+        }
+        if (impl != null) {
+            flushOutputStream(impl);
+            LOGGER.traceExit();
+            return;
+        }
 
-        if (segment == null) {
-            segment = segments.poll(SEGMENT_POLL_TIMEOUT, TimeUnit.MILLISECONDS);
-            if (segment != null) {
-                synchronized (segments) {
-                    segments.notifyAll();
-                }
-            }
+        TOUSegment segment = retransmissions.poll();
+        if (segment != null) {
             LOGGER.trace("polled {}", segment);
+            if (!segment.isCancelled()) {
+                send(segment);
+            }
+            LOGGER.traceExit();
+            return;
         }
 
-        if (segment != null) {
-            send(segment);
+        // both queues are empty: send what is bundled and sleep until a writer or a retransmitted segment unparks us
+        sender.bundle.flush();
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(SEGMENT_POLL_TIMEOUT));
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
         }
 
         LOGGER.traceExit();
     }
 
-    private TOUSegment flushAvailableOutputStream() {
-        LOGGER.traceEntry();
-
-        TOUSegment segment = null;
-        for (TOUSocketImpl impl : implMap.values()) {
-            if (impl == null) continue;
-
-            if (impl.outputStream == null) continue;
+    /**
+     * Deficit round robin: every turn adds DRR_QUANTUM bytes times the connection's weight to its
+     * credit, and the connection sends segments while the credit covers them. A connection which
+     * still has data goes to the tail of its queue and keeps the rest of the credit, an idle one
+     * loses it, so a bulk sender cannot hold the Sender for longer than its share. The streams
+     * of a connection take turns at going first with its credit, see {@link TOUStream}.
+     */
+    private void flushOutputStream(TOUSocketImpl impl)
+            throws IOException, InterruptedException {
+        LOGGER.traceEntry("{}", impl);
+
+        impl.dequeued();
+        impl.deficit += DRR_QUANTUM * impl.weight();
+        TOUSocketOutputStream[] outputs = impl.outputs();
+        boolean more = false;
+        for (int i = 0; i < outputs.length; ++i) {
+            TOUSocketOutputStream output = outputs[(impl.outputTurn + i) % outputs.length];
+            int pending;
+            while ((pending = output.pending()) > 0) {
+                if (pending > impl.deficit) {
+                    more = true;
+                    break;
+                }
+                if (output.holdsPartialSegment()) {
+                    // the ACK, flush, uncork or close which releases it queues the connection again
+                    LOGGER.trace("hold {} bytes of {}", pending, impl);
+                    break;
+                }
+                if (!impl.canSend()) {
+                    // the ACK which opens the send window queues the connection again
+                    LOGGER.trace("send window of {} is full", impl);
+                    impl.deficit = 0;
+                    LOGGER.traceExit();
+                    return;
+                }
+                TOUSegment segment = output.flushIntoSegment();
+                if (segment == null) break;
+                impl.sent(segment);
+                send(segment);
+                impl.deficit -= segment.dataSize();
+            }
+        }
+        impl.outputTurn = outputs.length == 0 ? 0 : (impl.outputTurn + 1) % outputs.length;
+        if (more) {
+            impl.outputReady();
+        } else {
+            impl.deficit = 0;
+        }
+        // the output is drained, the FIN of a closed socket may go now
+        impl.sendFINIfPending();
 
-            segment = impl.outputStream.flushIntoSegment();
+        LOGGER.traceExit();
+    }
 
-            if (segment != null) {
-                break;
-            }
+    /**
+     * Hands the segments which came before their connection was accepted over to it.
+     * Called on the Receiver thread.
+     */
+    void replay(List<TOUSegment> segments) {
+        try {
+            processBatch(segments);
+        } catch (IOException e) {
+            LOGGER.catching(e);
         }
+    }
 
-        return LOGGER.traceExit(segment);
+    /**
+     * Runs the task on the Receiver thread: at once if called on it, after the current batch otherwise.
+     */
+    void onReceiver(Runnable task) {
+        if (Thread.currentThread() == receiver) {
+            task.run();
+            return;
+        }
+        receiverTasks.offer(task);
+        if (receiver.isAlive()) {
+            receiver.wakeup();
+        } else {
+            // nothing else touches what the task does any more
+            receiver.runTasks();
+        }
     }
 
     synchronized void startIfNotAlive() {
@@ -197,50 +453,59 @@ class TOUCommunicator {
         LOGGER.traceExit();
     }
 
-    private boolean removeByACK(TOUSystemMessage ack) {
-        boolean removed = segments.removeIf(s ->
-                Objects.equals(s.destinationAddress, ack.destinationAddress) &&
-                        Objects.equals(s.sourceAddress, ack.sourceAddress) &&
-                        s.destinationPort() == ack.destinationPort() &&
-                        s.sourcePort() == ack.sourcePort() &&
-                        s.sequenceNumber() == ack.ackNumber());
-
-        if (removed) {
-            synchronized (segments) {
-                segments.notifyAll();
-            }
-        }
-
-        return removed;
+    @Override
+    public String toString() {
+        return "TOUCommunicator <" + TOULog4JUtils.toString(udpSocket) + '>';
     }
 
-    boolean removeByReference(Object o) {
-        boolean removed = segments.removeIf(s -> s == o);
-
-        if (removed) {
-            synchronized (segments) {
-                segments.notifyAll();
+    /**
+     * Frames on their way out, packed into as few datagrams as fit them: a frame joins the datagram
+     * being filled if it goes to the same destination and there is room for it. The datagram goes
+     * out when the next frame does not fit or when its thread has nothing more to send for now.
+     * Each bundle is private to one thread.
+     */
+    private final class Bundle {
+        // direct, so that the channel sends it without one more copy
+        private final ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        private InetAddress address;
+        private int port;
+        // the last frame, written when it is known whether another one follows it
+        private TOUSegment last;
+
+        void add(TOUSegment segment)
+                throws IOException {
+            InetAddress address = segment.destinationAddress();
+            int port = segment.destinationPort();
+            if (last != null && (port != this.port || !address.equals(this.address) ||
+                    datagram.position() + TOUFactory.frameSize(last) + TCPSegment.FRAME_LENGTH_SIZE +
+                            TOUFactory.frameSize(segment) > datagram.capacity())) {
+                flush();
             }
+            if (last == null) {
+                this.address = address;
+                this.port = port;
+            } else {
+                TOUFactory.packFrame(last, true, datagram);
+            }
+            last = segment;
         }
 
-        return removed;
-    }
+        void flush()
+                throws IOException {
+            if (last == null) return;
 
-    void waitUntilQueueIsEmpty() throws InterruptedException {
-        synchronized (segments) {
-            while (!segments.isEmpty()) {
-                segments.wait();
-            }
+            TOUFactory.packFrame(last, false, datagram);
+            datagram.flip();
+            LOGGER.trace("send {} bytes to {}:{}", datagram.remaining(), address, port);
+            send(datagram, address, port);
+            datagram.clear();
+            last = null;
         }
     }
 
-    @Override
-    public String toString() {
-        return "TOUCommunicator <" + TOULog4JUtils.toString(udpSocket) + '>';
-    }
-
     private class Sender extends Thread {
         private final Logger logger = LogManager.getLogger("Sender");
+        private final Bundle bundle = new Bundle();
 
         private Sender() {
             super("Sender");
@@ -262,31 +527,90 @@ class TOUCommunicator {
 
     private class Receiver extends Thread {
         private final Logger logger = LogManager.getLogger("Receiver");
+        private final Bundle bundle = new Bundle();
+        private volatile Selector selector;
 
         private Receiver() {
             super("Receiver");
         }
+
+        private void wakeup() {
+            Selector selector = this.selector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = receiverTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.warn("task failed", e);
+                }
+            }
+        }
+
         @Override
         public void run() {
             logger.traceEntry();
-            try {
-                while (!Thread.interrupted()) {
-                    logger.trace("waiting to udpSocket.receive");
-                    try {
-                        udpSocket.receive(udpPacket);
-                    } catch (SocketTimeoutException e) {
-                        logger.trace("udpSocket.receive timed out");
-                        continue;
+            ByteBuffer datagram = ByteBuffer.allocate(MAX_PACKET_SIZE);
+            List<TOUSegment> batch = new ArrayList<>(RECEIVE_BATCH);
+            long lastTrim = System.currentTimeMillis();
+            try (Selector selector = Selector.open()) {
+                this.selector = selector;
+                channel.register(selector, SelectionKey.OP_READ);
+                while (!Thread.interrupted() && channel.isOpen()) {
+                    logger.trace("waiting for datagrams");
+                    selector.select(UDP_RECV_TIMEOUT);
+                    selector.selectedKeys().clear();
+                    receiveBatch(datagram, batch);
+                    if (!batch.isEmpty()) {
+                        processBatch(batch);
+                        batch.clear();
+                    }
+                    runTasks();
+                    long now = System.currentTimeMillis();
+                    if (now - lastTrim >= BUFFER_IDLE_TIMEOUT) {
+                        trimIdleBuffers(now);
+                        lastTrim = now;
                     }
-                    TOUSegment segment = TOUFactory.unpackIntoTOU(udpPacket,
-                            udpSocket.getLocalAddress(), udpPacket.getAddress());
-                    logger.debug("recv {}", segment);
-                    processSegment(segment);
                 }
+            } catch (ClosedChannelException e) {
+                logger.trace("the socket is closed");
             } catch (IOException e) {
                 logger.catching(e);
+            } finally {
+                selector = null;
+                runTasks();
             }
             logger.traceExit();
         }
+
+        /**
+         * Lets the connections which have been idle since the last pass give their buffers back.
+         * It runs on the Receiver thread, which is the only one filling the reader's rings.
+         */
+        private void trimIdleBuffers(long now) {
+            for (TOUSocketImpl impl : implMap.values()) {
+                impl.trimIdleBuffers(now);
+            }
+        }
+
+        /**
+         * Drains the datagrams queued up since the last wakeup without blocking.
+         */
+        private void receiveBatch(ByteBuffer datagram, List<TOUSegment> batch)
+                throws IOException {
+            InetAddress localAddress = udpSocket.getLocalAddress();
+            SocketAddress source;
+            while (batch.size() < RECEIVE_BATCH && (source = channel.receive(datagram)) != null) {
+                datagram.flip();
+                int frames = TOUFactory.unpackFrames(datagram, (InetSocketAddress) source, localAddress, batch);
+                logger.debug("recv {} frames from {}", frames, source);
+                datagram.clear();
+            }
+        }
     }
 }
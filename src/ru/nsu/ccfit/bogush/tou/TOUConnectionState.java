@@ -0,0 +1,39 @@
+package ru.nsu.ccfit.bogush.tou;
+
+/**
+ * States of a TOU connection, named after their TCP counterparts (RFC 793).
+ */
+enum TOUConnectionState {
+    CLOSED,
+    LISTEN,
+    SYN_SENT,
+    SYN_RCVD,
+    ESTABLISHED,
+    FIN_WAIT_1,
+    FIN_WAIT_2,
+    CLOSING,
+    TIME_WAIT,
+    CLOSE_WAIT,
+    LAST_ACK;
+
+    /**
+     * @return true if the connection does not need any more control messages to finish
+     */
+    boolean isTerminal() {
+        return this == CLOSED || this == TIME_WAIT;
+    }
+
+    /**
+     * @return true if both sides know each other's sequence numbers and the connection is not finished yet
+     */
+    boolean isSynchronized() {
+        return this != CLOSED && this != LISTEN && this != SYN_SENT && this != SYN_RCVD && this != TIME_WAIT;
+    }
+
+    /**
+     * @return true if the peer has sent its FIN
+     */
+    boolean isRemoteClosed() {
+        return this == CLOSE_WAIT || this == LAST_ACK || this == CLOSING || this == TIME_WAIT;
+    }
+}
@@ -3,11 +3,55 @@ package ru.nsu.ccfit.bogush.tou;
 import ru.nsu.ccfit.bogush.tcp.TCPSegment;
 
 abstract class TOUConstants {
-    static final int MAX_DATA_SIZE = 1024; // bytes
+    static final int MAX_DATA_SIZE = 1024; // bytes, the most a peer may put in a segment
     static final int MAX_PACKET_SIZE = MAX_DATA_SIZE + TCPSegment.HEADER_SIZE;
-    static final int QUEUE_CAPACITY = 512;
+    static final int DRR_QUANTUM = MAX_DATA_SIZE; // bytes a connection of weight 1 may send per turn
     static final int SEGMENT_POLL_TIMEOUT = 300;
     static final int SEGMENT_TIMEOUT = 30;
-    static final int SYSTEM_MESSAGE_TIMEOUT = 5 * SEGMENT_TIMEOUT;
+    static final int SYSTEM_MESSAGE_TIMEOUT = 5 * SEGMENT_TIMEOUT; // between retransmissions of a control message
     static final int UDP_RECV_TIMEOUT = 300;
+    static final int RECEIVE_BATCH = 64; // datagrams the Receiver drains per wakeup at most
+    static final int HANDSHAKE_TIMEOUT = 10 * SYSTEM_MESSAGE_TIMEOUT;
+    static final int SYSTEM_MESSAGE_LIFETIME = HANDSHAKE_TIMEOUT; // a control message is not retransmitted longer
+    static final int MIN_RTO = SEGMENT_TIMEOUT;
+    static final int MAX_RTO = 2 * HANDSHAKE_TIMEOUT;
+    static final int MIN_PROBE_TIMEOUT = 10; // a tail loss probe waits at least this long after the last send
+    static final int MAX_RETRANSMISSIONS = 15; // in a row without any ACK, then the connection is reaped
+    static final int CLOSE_TIMEOUT = 2 * HANDSHAKE_TIMEOUT; // for the whole tear down in background
+    static final int TIME_WAIT_TIMEOUT = 2 * HANDSHAKE_TIMEOUT;
+    static final int DEFAULT_BACKLOG = 50;
+    static final int KEEPALIVE_TIME = 30_000; // silence before the first probe
+    static final int KEEPALIVE_INTERVAL = 5_000;
+    static final int KEEPALIVE_PROBES = 5;
+    // a connection whose peer has been silent for this long is reaped, 0 keeps it forever
+    static final int IDLE_TIMEOUT = Integer.getInteger("tou.idleTimeout", 0);
+    // a connection which has received nothing for this long gives its buffers back until it wakes up
+    static final int BUFFER_IDLE_TIMEOUT = Integer.getInteger("tou.bufferIdleTimeout", 2_000);
+    // bytes of send rings kept for reuse, see TOUBufferPool
+    static final long BUFFER_POOL_SIZE = Long.getLong("tou.bufferPool", 4L << 20);
+    // hosts whose path metrics are kept for new connections, see TOUMetricsCache
+    static final int METRICS_CACHE_SIZE = Integer.getInteger("tou.metricsCache", 1024);
+    static final int METRICS_TIMEOUT = 60 * 60_000; // ms an entry of the metrics cache is trusted
+    // whether new sockets start corked, see TOUSocketImpl.TCP_CORK
+    static final boolean CORK = Boolean.getBoolean("tou.cork");
+
+    // defaults of the per socket options, see TOUSocketImpl.setOption
+    // SO_SNDBUF, unacknowledged data stays in the send buffer as well
+    static final int SEND_BUFFER_SIZE = Integer.getInteger("tou.sendBuffer", 64 * MAX_DATA_SIZE);
+    // SO_RCVBUF, the most the receive window may grow to unless the option is set explicitly
+    static final int RECEIVE_BUFFER_SIZE = Integer.getInteger("tou.receiveBuffer", 1024 * MAX_DATA_SIZE);
+    // segments, the receive window a connection starts with before autotuning grows it
+    static final int INITIAL_RECEIVE_WINDOW = Integer.getInteger("tou.initialReceiveWindow", 16);
+    // bytes all the connections accepted by one listener may hold in their receive queues together
+    static final long RECEIVE_MEMORY = Long.getLong("tou.receiveMemory", Runtime.getRuntime().maxMemory() / 4);
+    // segments, the most a connection advertises while the receive memory is under pressure
+    static final int PRESSURE_WINDOW = 4;
+    static final int MSS = Integer.getInteger("tou.mss", MAX_DATA_SIZE); // bytes of data we put in a segment
+    static final int INITIAL_RTO = Integer.getInteger("tou.initialRto", 2 * SEGMENT_TIMEOUT);
+    static final int SEND_WINDOW = Integer.getInteger("tou.sendWindow", 256); // data segments in flight
+    // streams each side of a connection may have open at once besides the main one, see TOUStream
+    static final int MAX_STREAMS = Integer.getInteger("tou.maxStreams", 100);
+    // buffers of the UDP socket under a TOU socket, 0 leaves the system default
+    static final int UDP_SEND_BUFFER_SIZE = Integer.getInteger("tou.udpSendBuffer", 0);
+    static final int UDP_RECEIVE_BUFFER_SIZE = Integer.getInteger("tou.udpReceiveBuffer", 0);
 }
@@ -0,0 +1,107 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UDP sockets bound in advance to ephemeral ports of the local host, each one with its communicator
+ * already running, so that connect() costs only the handshake.
+ * <p>
+ * The pool is off unless the tou.endpointPool system property is positive. An endpoint serves
+ * a single connection and is closed with it, just like an endpoint bound on demand; the pool is
+ * refilled in background by a thread of its own.
+ */
+final class TOUEndpointPool {
+    static { TOULog4JUtils.initIfNotInitYet(); }
+    private static final Logger LOGGER = LogManager.getLogger(TOUEndpointPool.class.getSimpleName());
+
+    private static final int SIZE = Integer.getInteger("tou.endpointPool", 0);
+    private static final ConcurrentLinkedQueue<Endpoint> ENDPOINTS = new ConcurrentLinkedQueue<>();
+    // endpoints in the pool plus the ones being bound
+    private static final AtomicInteger COUNT = new AtomicInteger();
+    private static final ExecutorService REFILLER = SIZE <= 0 ? null : Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "TOUEndpointPool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static final class Endpoint {
+        final DatagramSocket udpSocket;
+        final ConcurrentHashMap<InetSocketAddress, TOUSocketImpl> implMap = new ConcurrentHashMap<>();
+        final TOUCommunicator communicator;
+
+        private Endpoint(DatagramSocket udpSocket)
+                throws IOException {
+            this.udpSocket = udpSocket;
+            this.communicator = new TOUCommunicator(implMap, udpSocket);
+            communicator.startIfNotAlive();
+        }
+
+        private void close() {
+            communicator.stop();
+            udpSocket.close();
+        }
+    }
+
+    private TOUEndpointPool() {}
+
+    /**
+     * Starts filling the pool, does nothing if it is off.
+     */
+    static void fill() {
+        if (SIZE <= 0) return;
+
+        while (true) {
+            int count = COUNT.get();
+            if (count >= SIZE) return;
+            if (COUNT.compareAndSet(count, count + 1)) {
+                REFILLER.execute(TOUEndpointPool::bindOne);
+            }
+        }
+    }
+
+    /**
+     * @return a warm endpoint bound to the address, null if there is none
+     */
+    static Endpoint take(InetAddress localAddress) {
+        if (SIZE <= 0) return null;
+
+        Endpoint endpoint = ENDPOINTS.poll();
+        if (endpoint == null) {
+            LOGGER.debug("the pool is empty");
+            return null;
+        }
+        COUNT.decrementAndGet();
+        fill();
+
+        if (!endpoint.udpSocket.getLocalAddress().equals(localAddress)) {
+            endpoint.close();
+            return null;
+        }
+        return endpoint;
+    }
+
+    private static void bindOne() {
+        try {
+            InetAddress localHost = TOUSocketImpl.localHost();
+            if (localHost == null) {
+                COUNT.decrementAndGet();
+                return;
+            }
+            ENDPOINTS.offer(new Endpoint(TOUSocketImpl.openUdpSocket(localHost, 0)));
+        } catch (IOException e) {
+            LOGGER.catching(e);
+            COUNT.decrementAndGet();
+        }
+    }
+}
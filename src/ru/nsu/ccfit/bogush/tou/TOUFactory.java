@@ -9,10 +9,11 @@ import ru.nsu.ccfit.bogush.tcp.TCPUnknownSegmentTypeException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
 import static ru.nsu.ccfit.bogush.tcp.TCPSegmentType.*;
-import static ru.nsu.ccfit.bogush.tou.TOUConstants.SEGMENT_TIMEOUT;
 import static ru.nsu.ccfit.bogush.tou.TOUConstants.SYSTEM_MESSAGE_TIMEOUT;
 
 class TOUFactory {
@@ -44,6 +45,33 @@ class TOUFactory {
         return packIntoTOU(unpackIntoTCP(packet), srcAddr, dstAddr);
     }
 
+    /**
+     * Unpacks the frames of a datagram read from a channel, the buffer is flipped for reading.
+     * A malformed frame is dropped along with the rest of the datagram.
+     *
+     * @return the number of frames added to the list
+     */
+    static int unpackFrames(ByteBuffer datagram, InetSocketAddress source, InetAddress dstAddr,
+                            List<TOUSegment> frames) {
+        byte[] array = datagram.array();
+        int offset = datagram.arrayOffset() + datagram.position();
+        int end = offset + datagram.remaining();
+        int count = 0;
+        while (offset < end) {
+            int length = TCPSegment.frameLength(array, offset, end - offset);
+            if (length < 0) {
+                LOGGER.debug("drop malformed frame of {} bytes from {}", end - offset, source);
+                break;
+            }
+            TCPSegment p = new TCPSegment(array, offset, length);
+            p.sourcePort(source.getPort());
+            frames.add(packIntoTOU(p, source.getAddress(), dstAddr));
+            offset += length;
+            ++count;
+        }
+        return count;
+    }
+
     static TOUSegment packIntoTOU(TCPSegment segment, InetAddress srcAddr, InetAddress dstAddr) {
         return new TOUSegment(segment, srcAddr, dstAddr, 0);
     }
@@ -51,11 +79,11 @@ class TOUFactory {
     static TOUSystemMessage createSYNorFIN(TCPSegmentType type,
                                            InetAddress srcAddr, int srcPort,
                                            InetAddress dstAddr, int dstPort) {
-        return new TOUSystemMessage(type, srcAddr, srcPort, dstAddr, dstPort, rand(), (short) 0, SYSTEM_MESSAGE_TIMEOUT);
+        return new TOUSystemMessage(type, srcAddr, srcPort, dstAddr, dstPort, rand(), 0, SYSTEM_MESSAGE_TIMEOUT);
     }
 
-    private static short rand() {
-        return (short) ThreadLocalRandom.current().nextInt();
+    private static int rand() {
+        return ThreadLocalRandom.current().nextInt();
     }
 
     static TOUSystemMessage createSYNACKorFINACK(InetAddress localAddress, int localPort, TOUSystemMessage synOrFin) {
@@ -67,13 +95,35 @@ class TOUFactory {
         synack.destinationAddress(synOrFin.sourceAddress());
         synack.destinationPort(synOrFin.sourcePort());
         synack.type(synOrFin.type() == SYN ? SYNACK : FINACK);
-        synack.ackNumber((short) (synOrFin.sequenceNumber() + 1));
+        synack.ackNumber(synOrFin.sequenceNumber() + 1);
         synack.sequenceNumber(rand());
         synack.setTimeout(SYSTEM_MESSAGE_TIMEOUT);
 
         return LOGGER.traceExit(synack);
     }
 
+    /**
+     * Gives a SYN or a SYNACK the fast open option, see {@link TOUFastOpen}.
+     *
+     * @param cookie null for a SYN which asks for a cookie
+     * @param data what a SYN carries after the cookie
+     */
+    static TOUSystemMessage withFastOpen(TOUSystemMessage synOrSynack, byte[] cookie, byte[] data) {
+        int cookieSize = cookie == null ? 0 : cookie.length;
+        byte[] payload = new byte[cookieSize + data.length];
+        if (cookie != null) {
+            System.arraycopy(cookie, 0, payload, 0, cookieSize);
+        }
+        System.arraycopy(data, 0, payload, cookieSize, data.length);
+
+        TCPSegment tcpSegment = new TCPSegment(payload.length);
+        tcpSegment.header(synOrSynack.tcpSegment.header());
+        tcpSegment.setFASTOPEN(true);
+        tcpSegment.data(payload);
+        return new TOUSystemMessage(tcpSegment, synOrSynack.type(),
+                synOrSynack.sourceAddress(), synOrSynack.destinationAddress(), synOrSynack.timeout());
+    }
+
     static TOUSystemMessage createACK(TOUSystemMessage synackOrFinack) {
         LOGGER.traceEntry(() -> synackOrFinack);
 
@@ -81,22 +131,57 @@ class TOUFactory {
         TOUSystemMessage ack = new TOUSystemMessage(synackOrFinack);
         swapSourceAndDestination(ack);
         ack.sequenceNumber(synackOrFinack.ackNumber());
-        ack.ackNumber((short) (synackOrFinack.sequenceNumber() + 1));
+        ack.ackNumber(synackOrFinack.sequenceNumber() + 1);
         ack.setTimeout(0);
         ack.type(ACK);
 
         return LOGGER.traceExit(ack);
     }
 
-    static TOUSystemMessage createACK(TOUSegment segment) {
+    /**
+     * Creates a cumulative ACK: the peer's data before ackNumber is received.
+     */
+    static TOUSystemMessage createACK(TOUSegment segment, int ackNumber) {
         TOUSystemMessage ack = new TOUSystemMessage(segment, ACK);
         swapSourceAndDestination(ack);
-        ack.sequenceNumber((short) 0);
-        ack.ackNumber(segment.sequenceNumber());
+        ack.sequenceNumber(0);
+        ack.ackNumber(ackNumber);
         ack.setTimeout(0);
+        ack.type(ACK);
+        return ack;
+    }
+
+    /**
+     * Creates a cumulative ACK which also acknowledges the given data segment selectively,
+     * so the peer does not retransmit it when it was received out of order.
+     */
+    static TOUSystemMessage createSACK(TOUSegment segment, int ackNumber) {
+        TOUSystemMessage ack = createACK(segment, ackNumber);
+        ack.sequenceNumber(segment.sequenceNumber());
+        ack.tcpSegment.setSACK(true);
         return ack;
     }
 
+    /**
+     * Creates a reset answering a segment which does not belong to any connection.
+     * The reset carries the sequence number the peer expects from us, if it is known.
+     */
+    static TOUSystemMessage createRST(TOUSegment segment) {
+        TOUSystemMessage rst = new TOUSystemMessage(segment, RST);
+        swapSourceAndDestination(rst);
+        rst.type(RST);
+        rst.sequenceNumber(segment.tcpSegment.isACK() ? segment.ackNumber() : 0);
+        rst.ackNumber(segment.sequenceNumber());
+        rst.setTimeout(0);
+        return rst;
+    }
+
+    static TOUSystemMessage createRST(InetAddress srcAddr, int srcPort,
+                                      InetAddress dstAddr, int dstPort,
+                                      int sequenceNumber) {
+        return new TOUSystemMessage(RST, srcAddr, srcPort, dstAddr, dstPort, sequenceNumber, 0, 0);
+    }
+
     private static void swapSourceAndDestination(TOUSegment segment) {
         InetAddress srcAddr = segment.sourceAddress;
         segment.sourceAddress = segment.destinationAddress;
@@ -106,43 +191,33 @@ class TOUFactory {
         segment.destinationPort(srcPort);
     }
 
-    private static TOUSystemMessage createACK(short sequenceNumber, InetSocketAddress local, InetSocketAddress remote) {
+    private static TOUSystemMessage createACK(int sequenceNumber, InetSocketAddress local, InetSocketAddress remote) {
         return createACK(sequenceNumber, local.getAddress(), local.getPort(), remote.getAddress(), remote.getPort());
     }
 
-    private static TOUSystemMessage createACK(short sequenceNumber,
-                                              InetAddress localAddress, int localPort,
-                                              InetAddress remoteAddress, int remotePort) {
+    /**
+     * Creates a cumulative ACK on behalf of a connection, not in answer to any segment.
+     */
+    static TOUSystemMessage createACK(int ackNumber,
+                                      InetAddress localAddress, int localPort,
+                                      InetAddress remoteAddress, int remotePort) {
         TOUSystemMessage ack = new TOUSystemMessage();
         ack.destinationAddress(remoteAddress);
         ack.destinationPort(remotePort);
         ack.sourceAddress(localAddress);
         ack.sourcePort(localPort);
-        ack.ackNumber(sequenceNumber);
+        ack.ackNumber(ackNumber);
         ack.setTimeout(0);
         ack.type(ACK);
         return ack;
     }
 
-    static boolean canMerge(TOUSegment segment, TOUSystemMessage systemMessage) {
-        // allow only ACK + ORDINARY merging
-        return  segment.typeByte() == 0 &&
-                systemMessage.type() == ACK;
-    }
-
-    static boolean isMergedWithSystemMessage(TOUSegment dataSegment, TOUSystemMessage systemMessage) {
-        return  dataSegment.typeByte() == ACK.toByte() &&
-                dataSegment.ackNumber() == systemMessage.ackNumber();
-    }
-
-    static void merge(TOUSegment dataSegment, TOUSystemMessage systemMessage) {
-        dataSegment.type(systemMessage.type());
-        dataSegment.ackNumber(systemMessage.ackNumber());
-    }
-
-    static void unmerge(TOUSegment dataSegment)  {
-        dataSegment.type(ORDINARY);
-        dataSegment.ackNumber((short) 0);
+    /**
+     * Lets a data segment carry a cumulative ACK.
+     */
+    static void piggyback(TOUSegment dataSegment, int ackNumber) {
+        dataSegment.tcpSegment.setACK(true);
+        dataSegment.ackNumber(ackNumber);
     }
 
     static TOUSystemMessage generateDataSegmentKey(TCPSegment segment, InetAddress srcAddr, InetAddress dstAddr) {
@@ -181,7 +256,7 @@ class TOUFactory {
     static TOUSystemMessage generateSystemMessageKey(TCPSegmentType type,
                                                     InetAddress srcAddr, int srcPort,
                                                     InetAddress dstAddr, int dstPort,
-                                                    short seq, short ack) {
+                                                    int seq, int ack) {
         TOUSystemMessage key = new TOUSystemMessage(type);
         key.destinationAddress(dstAddr);
         key.destinationPort(dstPort);
@@ -230,12 +305,90 @@ class TOUFactory {
         return createSYNACKorFINACK(impl.localAddress(), impl.localPort(), synOrFin);
     }
 
-    TOUSegment createTOUSegment(byte[] data, short sequenceNumber) {
+    /**
+     * Makes one data segment of the given unframed segments which follow each other in the byte stream,
+     * the header is taken from the first one.
+     */
+    static TOUSegment coalesce(List<TOUSegment> segments) {
+        TOUSegment first = segments.get(0);
+        int size = 0;
+        for (TOUSegment segment : segments) {
+            size += segment.dataSize();
+        }
+        TCPSegment header = new TCPSegment(first.tcpSegment.header());
+        if (first.payload() != null) {
+            // the data is in the send buffer in one piece already
+            return new TOUSegment(header, first.payload(), first.payloadOffset(), size, null,
+                    first.sourceAddress(), first.destinationAddress());
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (TOUSegment segment : segments) {
+            segment.putData(data);
+        }
+        TCPSegment tcpSegment = new TCPSegment(size);
+        tcpSegment.header(header.bytes());
+        tcpSegment.data(data.array());
+        return new TOUSegment(tcpSegment, first.sourceAddress(), first.destinationAddress());
+    }
+
+    /**
+     * Makes the segment which goes in place of a segment of an abandoned message: a skip frame
+     * which takes the same sequence numbers, see {@link TOUStream}.
+     */
+    static TOUSegment skip(TOUSegment segment) {
+        byte[] frame = segment.frame();
+        byte[] skip = TOUStream.skip(TOUStream.frameId(frame, 0), segment.messageStart(), segment.messageEnd(),
+                TOUStream.frameFin(frame, 0), segment.dataSize());
+        TCPSegment header = new TCPSegment(segment.tcpSegment.header());
+        return new TOUSegment(header, segment.payload(), segment.payloadEnd(), 0, skip,
+                segment.sourceAddress(), segment.destinationAddress());
+    }
+
+    /**
+     * Appends a segment to a datagram as a frame, see {@link TCPSegment#markLeadingFrame}.
+     *
+     * @param more whether another frame follows this one
+     */
+    static void packFrame(TOUSegment segment, boolean more, ByteBuffer datagram) {
+        int start = datagram.position();
+        datagram.put(segment.tcpSegment.bytes(), 0, TCPSegment.HEADER_SIZE);
+        if (more) {
+            int headerSize = TCPSegment.HEADER_SIZE + TCPSegment.FRAME_LENGTH_SIZE;
+            TCPSegment.markLeadingFrame(datagram, start, headerSize + segment.dataSize());
+            datagram.position(start + headerSize);
+        }
+        segment.putData(datagram);
+    }
+
+    /**
+     * @return the size of the segment as the last frame of a datagram
+     */
+    static int frameSize(TOUSegment segment) {
+        return TCPSegment.HEADER_SIZE + segment.dataSize();
+    }
+
+    TOUSegment createTOUSegment(byte[] data, int sequenceNumber) {
         TCPSegment tcpSegment = new TCPSegment(data.length);
         tcpSegment.sequenceNumber(sequenceNumber);
         tcpSegment.data(data);
         tcpSegment.sourcePort(impl.localPort());
         tcpSegment.destinationPort(impl.port());
-        return new TOUSegment(tcpSegment, impl.localAddress(), impl.address(), SEGMENT_TIMEOUT);
+        return new TOUSegment(tcpSegment, impl.localAddress(), impl.address(), 0);
+    }
+
+    /**
+     * Creates a data segment whose data stays in the send buffer.
+     *
+     * @param offset where the data starts in the buffer
+     * @param frame the stream frame header to put before the data, null for an unframed segment
+     */
+    TOUSegment createTOUSegment(TOUSendBuffer buffer, int sequenceNumber, int offset, int size, byte[] frame) {
+        TCPSegment header = new TCPSegment();
+        header.sequenceNumber(sequenceNumber);
+        header.sourcePort(impl.localPort());
+        header.destinationPort(impl.port());
+        header.setSTREAM(frame != null);
+        return new TOUSegment(header, buffer, offset, size, frame, impl.localAddress(), impl.address());
     }
 }
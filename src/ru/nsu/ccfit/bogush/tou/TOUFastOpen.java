@@ -0,0 +1,66 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The cookies of fast open, like TCP Fast Open (RFC 7413): a listener gives a client a cookie on
+ * a handshake which asks for it, and takes the data of the SYNs which bring the cookie back.
+ * <p>
+ * A cookie is a truncated MAC of the client's address under a key made up once per process,
+ * so the listener keeps nothing per client, and a cookie can neither be forged nor used from
+ * another address. A client whose cookie has gone stale gets a new one on the usual handshake.
+ */
+final class TOUFastOpen {
+    static final int COOKIE_SIZE = 8; // bytes
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Mac MAC = newMac();
+
+    private TOUFastOpen() {}
+
+    private static Mac newMac() {
+        byte[] key = new byte[16];
+        new SecureRandom().nextBytes(key);
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // every Java platform has HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] cookie(InetAddress client) {
+        byte[] mac;
+        synchronized (MAC) {
+            mac = MAC.doFinal(client.getAddress());
+        }
+        return Arrays.copyOf(mac, COOKIE_SIZE);
+    }
+
+    static boolean isValid(InetAddress client, byte[] cookie) {
+        return cookie != null && MessageDigest.isEqual(cookie(client), cookie);
+    }
+
+    /**
+     * @return true if the SYN brings back the cookie its sender was given
+     */
+    static boolean hasCookie(TOUSystemMessage syn) {
+        byte[] payload = syn.tcpSegment.data();
+        return payload.length >= COOKIE_SIZE &&
+                isValid(syn.sourceAddress(), Arrays.copyOf(payload, COOKIE_SIZE));
+    }
+
+    /**
+     * @return true if the SYN brings back its cookie and data after it
+     */
+    static boolean hasData(TOUSystemMessage syn) {
+        return syn.tcpSegment.dataSize() > COOKIE_SIZE && hasCookie(syn);
+    }
+}
@@ -0,0 +1,97 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the connections to a host have learned about the path, kept after they close, so that the
+ * next connection to the host starts with it instead of the defaults, like the TCP metrics of Linux.
+ * <p>
+ * An entry is keyed by the address of the peer, any port, and holds the smoothed RTT, its variation
+ * and the receive window autotuning ended with. A smaller RTT replaces the cached one at once,
+ * a larger one moves it by an eighth, so one connection over a congested moment does not spoil
+ * the entry. The cache keeps a bounded number of hosts and evicts the least recently used one;
+ * an entry which has not been updated for the timeout is forgotten.
+ * <p>
+ * The fast open cookie the host gave us is kept in its entry too, see {@link TOUFastOpen}.
+ */
+class TOUMetricsCache {
+    private final LinkedHashMap<InetAddress, Metrics> entries;
+    private final long timeout;
+
+    TOUMetricsCache(int capacity, long timeout) {
+        this.timeout = timeout;
+        this.entries = new LinkedHashMap<InetAddress, Metrics>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, Metrics> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the metrics of the host, null if there are none
+     */
+    synchronized Metrics get(InetAddress address) {
+        Metrics metrics = entries.get(address);
+        if (metrics != null && System.currentTimeMillis() - metrics.updated >= timeout) {
+            entries.remove(address);
+            return null;
+        }
+        return metrics;
+    }
+
+    /**
+     * @param smoothedRtt -1 if the connection has not measured it
+     * @param receiveWindow segments, 0 if the window was not autotuned
+     */
+    synchronized void update(InetAddress address, long smoothedRtt, long rttVariation, int receiveWindow) {
+        Metrics old = get(address);
+        if (old != null) {
+            if (smoothedRtt < 0) {
+                smoothedRtt = old.smoothedRtt;
+                rttVariation = old.rttVariation;
+            } else if (old.smoothedRtt >= 0 && smoothedRtt > old.smoothedRtt) {
+                smoothedRtt = old.smoothedRtt + (smoothedRtt - old.smoothedRtt) / 8;
+                rttVariation = Math.max(rttVariation, old.rttVariation);
+            }
+            if (receiveWindow == 0) {
+                receiveWindow = old.receiveWindow;
+            }
+        }
+        byte[] cookie = old == null ? null : old.fastOpenCookie;
+        entries.put(address, new Metrics(smoothedRtt, rttVariation, receiveWindow, cookie, System.currentTimeMillis()));
+    }
+
+    /**
+     * Keeps the fast open cookie the host has given us, the metrics stay as they are.
+     */
+    synchronized void updateFastOpenCookie(InetAddress address, byte[] cookie) {
+        Metrics old = get(address);
+        long now = System.currentTimeMillis();
+        entries.put(address, old == null ? new Metrics(-1, -1, 0, cookie, now) :
+                new Metrics(old.smoothedRtt, old.rttVariation, old.receiveWindow, cookie, now));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    static final class Metrics {
+        final long smoothedRtt;
+        final long rttVariation;
+        final int receiveWindow;
+        // null if the host has not given us one
+        final byte[] fastOpenCookie;
+        private final long updated;
+
+        private Metrics(long smoothedRtt, long rttVariation, int receiveWindow, byte[] fastOpenCookie, long updated) {
+            this.smoothedRtt = smoothedRtt;
+            this.rttVariation = rttVariation;
+            this.receiveWindow = receiveWindow;
+            this.fastOpenCookie = fastOpenCookie;
+            this.updated = updated;
+        }
+    }
+}
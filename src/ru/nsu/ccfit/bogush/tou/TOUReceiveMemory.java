@@ -0,0 +1,45 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bytes of received data which all the connections accepted by one listener may hold in their
+ * receive queues together, out-of-order and not read yet.
+ * <p>
+ * The Receiver charges a payload before it keeps it and the reader gives it back once it takes it.
+ * Past three quarters of the limit the budget is under pressure: the connections clamp the windows
+ * they advertise and drop new out-of-order data, which the peers send again anyway once the gaps
+ * are filled. In-order data is dropped only when it would not fit in the limit at all.
+ */
+final class TOUReceiveMemory {
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    TOUReceiveMemory(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return false if the bytes would not fit in the limit, nothing is charged then
+     */
+    boolean charge(int size) {
+        long current;
+        do {
+            current = used.get();
+            if (current + size > limit) return false;
+        } while (!used.compareAndSet(current, current + size));
+        return true;
+    }
+
+    void release(long size) {
+        used.addAndGet(-size);
+    }
+
+    boolean isUnderPressure() {
+        return used.get() > limit - limit / 4;
+    }
+
+    long used() {
+        return used.get();
+    }
+}
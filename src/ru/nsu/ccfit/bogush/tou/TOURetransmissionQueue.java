@@ -0,0 +1,427 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import static ru.nsu.ccfit.bogush.tou.TOUConstants.*;
+
+/**
+ * Data segments of one connection which are sent but not acknowledged yet.
+ * <p>
+ * The segments of a connection follow each other without gaps in the byte stream, so they sit in
+ * a ring in sequence order: a cumulative ACK retires them from the head up to it and a selective
+ * ACK finds its segment by binary search. A segment leaving the head frees its data in the send
+ * buffer it was cut from. When the timer expires, runs of small unframed segments which are still
+ * unacknowledged go out again as one segment of up to the MSS, which then takes their place.
+ * A segment of a partially reliable message which is abandoned by then goes as a skip frame instead.
+ * The queue also runs the connection's retransmission timer (RFC 6298) and backs it off while
+ * the peer is silent.
+ * <p>
+ * When the tail of a flight is lost no later segment makes the peer answer, so before the RTO
+ * the timer first fires a tail loss probe (RFC 8985) about two RTTs after the last send: the
+ * newest unacknowledged segment goes again, and its ACK or SACK shows what is missing.
+ */
+class TOURetransmissionQueue {
+    static { TOULog4JUtils.initIfNotInitYet(); }
+    private static final Logger LOGGER = LogManager.getLogger(TOURetransmissionQueue.class.getSimpleName());
+
+    private final TOUSocketImpl impl;
+    // allocated with the first segment and dropped while the connection is idle, see trim()
+    private TOUSegment[] slots;
+    // time of the first transmission, 0 after a retransmission (Karn's algorithm)
+    private long[] sentAt;
+    private final int capacity;
+    private final int mask;
+    private final long initialRto;
+    private int first; // the slot of the oldest segment
+    private int size; // segments from the oldest one, selectively acknowledged ones included
+    private int next; // the sequence number past the newest segment
+    private int selectiveEnd; // the sequence number past the highest selectively acknowledged segment
+    private long smoothedRtt = -1;
+    private long rttVariation;
+    private long rto;
+    private int retransmissions;
+    private ScheduledFuture<?> timer;
+    private long lastSent;
+    // a probe went out and nothing has been acknowledged since
+    private boolean probed;
+
+    /**
+     * @param capacity the most segments in flight, a power of two
+     * @param initialRto the timeout until the first RTT sample, in milliseconds
+     */
+    TOURetransmissionQueue(TOUSocketImpl impl, int initialSequenceNumber, int capacity, long initialRto) {
+        if (Integer.bitCount(capacity) != 1 || capacity > 1 << 15) {
+            throw new IllegalArgumentException("capacity must be a power of two up to 32768: " + capacity);
+        }
+        this.impl = impl;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.next = initialSequenceNumber;
+        this.selectiveEnd = initialSequenceNumber;
+        this.initialRto = initialRto;
+        this.rto = initialRto;
+    }
+
+    synchronized boolean isFull() {
+        return size == capacity;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long rto() {
+        return rto;
+    }
+
+    /**
+     * @return the smoothed round trip time, -1 before the first sample
+     */
+    synchronized long smoothedRtt() {
+        return smoothedRtt;
+    }
+
+    synchronized long rttVariation() {
+        return rttVariation;
+    }
+
+    /**
+     * Starts the estimator from what an earlier connection to the peer measured, before the first sample.
+     */
+    synchronized void seed(long smoothedRtt, long rttVariation) {
+        if (smoothedRtt < 0 || this.smoothedRtt >= 0) return;
+        this.smoothedRtt = smoothedRtt;
+        this.rttVariation = rttVariation;
+        rto = computeRto();
+    }
+
+    /**
+     * Called by the Sender for every new data segment, in sequence order.
+     */
+    synchronized void add(TOUSegment segment) {
+        if (segment.sequenceNumber() != next || isFull()) {
+            throw new IllegalStateException("seq: " + segment.sequenceNumber() + " does not follow " +
+                    next + " or the queue is full");
+        }
+
+        if (slots == null) {
+            slots = new TOUSegment[capacity];
+            sentAt = new long[capacity];
+        }
+        int slot = slot(size);
+        slots[slot] = segment;
+        sentAt[slot] = System.currentTimeMillis();
+        lastSent = sentAt[slot];
+        ++size;
+        next = end(segment);
+        if (timer == null) {
+            arm();
+        }
+    }
+
+    /**
+     * Retires every segment which ends before ackNumber.
+     *
+     * @return the number of segments retired
+     */
+    synchronized int acknowledge(int ackNumber) {
+        // any ACK shows the peer is alive even if it cannot take more data now
+        retransmissions = 0;
+
+        if (size == 0 || ackNumber - next > 0) return 0;
+        int acknowledged = 0;
+        while (acknowledged < size && end(at(acknowledged)) - ackNumber <= 0) {
+            ++acknowledged;
+        }
+        if (acknowledged == 0) return 0;
+
+        long now = System.currentTimeMillis();
+        int retired = 0;
+        for (int i = 0; i < acknowledged; ++i) {
+            int slot = slot(i);
+            if (!slots[slot].isCancelled()) {
+                if (i == acknowledged - 1) {
+                    sample(now, slot);
+                }
+                slots[slot].cancel();
+                ++retired;
+            }
+            release(slots[slot]);
+            slots[slot] = null;
+        }
+        first = slot(acknowledged);
+        size -= acknowledged;
+        probed = false;
+        if (selectiveEnd - head() < 0) {
+            selectiveEnd = head();
+        }
+
+        // progress: forget the backoff
+        rto = computeRto();
+        disarm();
+        if (size > 0) {
+            arm();
+        }
+
+        return retired;
+    }
+
+    /**
+     * Retires the single segment starting at sequenceNumber which the peer has received out of order.
+     *
+     * @return true if the segment was in flight
+     */
+    synchronized boolean acknowledgeSelectively(int sequenceNumber) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int distance = at(middle).sequenceNumber() - sequenceNumber;
+            if (distance < 0) {
+                low = middle + 1;
+            } else if (distance > 0) {
+                high = middle - 1;
+            } else {
+                int slot = slot(middle);
+                if (slots[slot].isCancelled()) return false;
+
+                sample(System.currentTimeMillis(), slot);
+                slots[slot].cancel();
+                if (end(slots[slot]) - selectiveEnd > 0) {
+                    selectiveEnd = end(slots[slot]);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the slots while nothing is in flight, the next segment allocates them again.
+     */
+    synchronized void trim() {
+        if (size > 0) return;
+        slots = null;
+        sentAt = null;
+    }
+
+    /**
+     * Drops everything in flight and stops the timer once the connection is gone.
+     */
+    synchronized void clear() {
+        disarm();
+        for (int i = 0; i < size; ++i) {
+            int slot = slot(i);
+            slots[slot].cancel();
+            slots[slot] = null;
+        }
+        size = 0;
+        selectiveEnd = next;
+    }
+
+    private void timedOut() {
+        List<TOUSegment> lost;
+        boolean giveUp;
+        int head;
+        synchronized (this) {
+            timer = null;
+            if (size == 0) return;
+
+            head = head();
+            giveUp = ++retransmissions > MAX_RETRANSMISSIONS;
+            if (giveUp) {
+                lost = null;
+            } else {
+                lost = collectLost();
+                rto = Math.min(2 * rto, MAX_RTO);
+                // no probes while backing off
+                probed = true;
+                arm();
+            }
+        }
+
+        if (giveUp) {
+            LOGGER.debug("{} retransmissions of seq: {} are left unanswered", MAX_RETRANSMISSIONS, head);
+            impl.retransmissionsExhausted();
+        } else {
+            LOGGER.trace("retransmit {} segments, next timeout in {} ms", lost.size(), rto);
+            impl.retransmit(lost);
+        }
+    }
+
+    private void probeTimedOut() {
+        TOUSegment probe = null;
+        synchronized (this) {
+            timer = null;
+            if (size == 0) return;
+
+            long sinceLastSent = System.currentTimeMillis() - lastSent;
+            long probeTimeout = probeTimeout();
+            if (sinceLastSent < probeTimeout) {
+                // the flight has grown since the timer was armed
+                timer = TOUTimer.schedule(this::probeTimedOut, probeTimeout - sinceLastSent);
+                return;
+            }
+
+            probed = true;
+            if (!impl.hasSendableData()) {
+                for (int i = size - 1; i >= 0 && probe == null; --i) {
+                    if (!at(i).isCancelled()) {
+                        probe = retransmission(at(i), System.currentTimeMillis());
+                        sentAt[slot(i)] = 0;
+                    }
+                }
+            }
+            timer = TOUTimer.schedule(this::timedOut, rto);
+        }
+
+        if (probe != null) {
+            LOGGER.trace("tail loss probe seq: {}", probe.sequenceNumber());
+            impl.retransmit(Collections.singletonList(probe));
+        }
+    }
+
+    /**
+     * The holes below the highest selectively acknowledged segment are lost for sure, and so is
+     * the first segment past it, or nothing would have timed out. Each of them takes the segments
+     * right after it which are unacknowledged as well, as long as they fit in the MSS together.
+     *
+     * @return the segments to send again, in sequence order
+     */
+    synchronized List<TOUSegment> collectLost() {
+        List<TOUSegment> lost = new ArrayList<>();
+        int mss = impl.mss();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < size; ++i) {
+            TOUSegment segment = at(i);
+            if (segment.isCancelled()) continue;
+
+            int run = 1;
+            int bytes = segment.dataSize();
+            // the data of stream frames is not contiguous in one buffer
+            while (!segment.isFramed() && i + run < size && !at(i + run).isCancelled() &&
+                    !at(i + run).isFramed() && bytes + at(i + run).dataSize() <= mss) {
+                bytes += at(i + run).dataSize();
+                ++run;
+            }
+            if (run > 1) {
+                segment = repacketize(i, run);
+            }
+            sentAt[slot(i)] = 0;
+            lost.add(retransmission(segment, now));
+            if (segment.sequenceNumber() - selectiveEnd >= 0) break;
+        }
+        return lost;
+    }
+
+    /**
+     * @return the segment to send again, or the skip frame in its place if its message is abandoned
+     */
+    private static TOUSegment retransmission(TOUSegment segment, long now) {
+        if (!segment.countRetransmission(now)) return segment;
+        LOGGER.trace("skip frame for seq: {} of an abandoned message", segment.sequenceNumber());
+        return TOUFactory.skip(segment);
+    }
+
+    /**
+     * Puts one segment with the data of the given run of segments in their place.
+     */
+    private TOUSegment repacketize(int from, int count) {
+        List<TOUSegment> run = new ArrayList<>(count);
+        for (int i = from; i < from + count; ++i) {
+            run.add(at(i));
+            // the Sender skips their retransmissions which may still be queued
+            at(i).cancel();
+        }
+        TOUSegment segment = TOUFactory.coalesce(run);
+        LOGGER.trace("repacketize {} segments from seq: {} into {} bytes", count, segment.sequenceNumber(),
+                segment.dataSize());
+
+        slots[slot(from)] = segment;
+        for (int i = from + 1; i + count - 1 < size; ++i) {
+            slots[slot(i)] = slots[slot(i + count - 1)];
+            sentAt[slot(i)] = sentAt[slot(i + count - 1)];
+        }
+        for (int i = size - count + 1; i < size; ++i) {
+            slots[slot(i)] = null;
+        }
+        size -= count - 1;
+        return segment;
+    }
+
+    /**
+     * The streams of a connection have a send buffer each, so every retired segment frees its own
+     * range of data rather than the connection freeing everything before the ACK in one buffer.
+     */
+    private static void release(TOUSegment segment) {
+        if (segment.payload() != null) {
+            segment.payload().acknowledge(segment.payloadEnd());
+        }
+    }
+
+    private void sample(long now, int slot) {
+        if (sentAt[slot] == 0) return;
+
+        long rtt = now - sentAt[slot];
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+    }
+
+    private long computeRto() {
+        if (smoothedRtt < 0) return initialRto;
+        return Math.min(Math.max(smoothedRtt + 4 * rttVariation, MIN_RTO), MAX_RTO);
+    }
+
+    private void arm() {
+        if (!probed && smoothedRtt >= 0 && probeTimeout() < rto) {
+            timer = TOUTimer.schedule(this::probeTimedOut, probeTimeout());
+        } else {
+            timer = TOUTimer.schedule(this::timedOut, rto);
+        }
+    }
+
+    private long probeTimeout() {
+        return Math.max(2 * smoothedRtt, MIN_PROBE_TIMEOUT);
+    }
+
+    private void disarm() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    /**
+     * @return the sequence number of the oldest byte in flight
+     */
+    private int head() {
+        return size == 0 ? next : at(0).sequenceNumber();
+    }
+
+    private TOUSegment at(int index) {
+        return slots[slot(index)];
+    }
+
+    private int slot(int index) {
+        return (first + index) & mask;
+    }
+
+    private static int end(TOUSegment segment) {
+        return segment.sequenceNumber() + segment.dataSize();
+    }
+}
@@ -5,16 +5,46 @@ import ru.nsu.ccfit.bogush.tcp.TCPSegmentType;
 import ru.nsu.ccfit.bogush.tcp.TCPUnknownSegmentTypeException;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static ru.nsu.ccfit.bogush.tou.TOUConstants.SYSTEM_MESSAGE_LIFETIME;
 
 class TOUSegment {
     TCPSegment tcpSegment;
     InetAddress sourceAddress;
     InetAddress destinationAddress;
-    private long timeExpires = 0;
+    private long firstSent = 0;
     private long timeout;
+    // set once the segment is acknowledged or its connection is gone
+    private volatile boolean cancelled = false;
+    // a data segment cut from a send buffer has only the header in tcpSegment, its data stays in the buffer
+    private final TOUSendBuffer payload;
+    // where the data is in the buffer: the sequence number, unless the segment carries a stream frame
+    private final int payloadOffset;
+    private final int payloadSize;
+    // the stream frame header put before the data, see TOUStream; null for an unframed segment
+    private final byte[] frame;
+    // a segment of a partially reliable message: when it is abandoned, 0 for no deadline and negative
+    // for no limit, and the offsets of the message. Set by the Sender before the segment is queued
+    private long deadline = 0;
+    private int retransmissionsLeft = -1;
+    private int messageStart;
+    private int messageEnd;
 
     TOUSegment(TOUSegment other) {
-        this(new TCPSegment(other.tcpSegment), other.sourceAddress, other.destinationAddress);
+        this(new TCPSegment(other.tcpSegment), other.payload, other.payloadOffset, other.payloadSize, other.frame,
+                other.sourceAddress, other.destinationAddress);
+    }
+
+    TOUSegment(TCPSegment header, TOUSendBuffer payload, int payloadOffset, int payloadSize, byte[] frame,
+               InetAddress sourceAddress, InetAddress destinationAddress) {
+        this.tcpSegment = header;
+        this.payload = payload;
+        this.payloadOffset = payloadOffset;
+        this.payloadSize = payloadSize;
+        this.frame = frame;
+        this.sourceAddress = sourceAddress;
+        this.destinationAddress = destinationAddress;
     }
 
     TOUSegment(TCPSegment tcpSegment, InetAddress sourceAddress, InetAddress destinationAddress) {
@@ -23,6 +53,10 @@ class TOUSegment {
 
     TOUSegment(TCPSegment tcpSegment, InetAddress sourceAddress, InetAddress destinationAddress, long timeout) {
         this.tcpSegment = tcpSegment;
+        this.payload = null;
+        this.payloadOffset = 0;
+        this.payloadSize = 0;
+        this.frame = null;
         this.sourceAddress = sourceAddress;
         this.destinationAddress = destinationAddress;
         this.timeout = timeout;
@@ -52,23 +86,104 @@ class TOUSegment {
         return tcpSegment.flags();
     }
 
-    void sequenceNumber(short sequenceNumber) {
+    void sequenceNumber(int sequenceNumber) {
         tcpSegment.sequenceNumber(sequenceNumber);
     }
 
-    short sequenceNumber() {
+    int sequenceNumber() {
         return tcpSegment.sequenceNumber();
     }
 
-    void ackNumber(short ackNumber) {
+    void ackNumber(int ackNumber) {
         tcpSegment.ackNumber(ackNumber);
     }
 
-    short ackNumber() {
+    int ackNumber() {
         return tcpSegment.ackNumber();
     }
 
-    int sequenceAndAckNumbers() {
+    TOUSendBuffer payload() {
+        return payload;
+    }
+
+    int payloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * @return the offset in the send buffer past the data of the segment
+     */
+    int payloadEnd() {
+        return payloadOffset + payloadSize;
+    }
+
+    boolean isFramed() {
+        return frame != null || tcpSegment.isSTREAM();
+    }
+
+    byte[] frame() {
+        return frame;
+    }
+
+    int messageStart() {
+        return messageStart;
+    }
+
+    int messageEnd() {
+        return messageEnd;
+    }
+
+    /**
+     * Makes the segment one of a partially reliable message, see {@link TOUStream}.
+     */
+    void abandonAfter(long deadline, int maxRetransmissions, int messageStart, int messageEnd) {
+        this.deadline = deadline;
+        this.retransmissionsLeft = maxRetransmissions;
+        this.messageStart = messageStart;
+        this.messageEnd = messageEnd;
+    }
+
+    /**
+     * Called by the retransmission queue every time the segment is due to go again.
+     *
+     * @return true if its message is abandoned: a skip frame goes instead of the segment
+     */
+    boolean countRetransmission(long now) {
+        if (retransmissionsLeft == 0 || deadline != 0 && now - deadline >= 0) return true;
+        if (retransmissionsLeft > 0) {
+            --retransmissionsLeft;
+        }
+        return false;
+    }
+
+    int dataSize() {
+        if (payload == null) return tcpSegment.dataSize();
+        return frame == null ? payloadSize : frame.length + payloadSize;
+    }
+
+    /**
+     * Copies the data of the segment into a datagram, from the send buffer if it was cut from one.
+     */
+    void putData(ByteBuffer datagram) {
+        if (payload == null) {
+            datagram.put(tcpSegment.bytes(), tcpSegment.dataOffset(), tcpSegment.dataSize());
+            return;
+        }
+        if (frame != null) {
+            datagram.put(frame);
+        }
+        payload.get(payloadOffset, payloadSize, datagram);
+    }
+
+    void window(int window) {
+        tcpSegment.window(window);
+    }
+
+    int window() {
+        return tcpSegment.window();
+    }
+
+    long sequenceAndAckNumbers() {
         return tcpSegment.sequenceAndAckNumbers();
     }
 
@@ -104,20 +219,37 @@ class TOUSegment {
         return tcpSegment.destinationPort();
     }
 
+    /**
+     * A control message is retransmitted every {@link #timeout()} ms until it is cancelled
+     * or its lifetime is over. Data segments have no timeout, the retransmission queue
+     * of their connection takes care of them.
+     */
     boolean needsResending() {
-        if (timeout <= 0) return false;
+        if (timeout <= 0 || cancelled) return false;
         long currentTime = System.currentTimeMillis();
-        if (timeExpires == 0) {
-            timeExpires = currentTime + timeout;
+        if (firstSent == 0) {
+            firstSent = currentTime;
         }
-        return timeExpires >= currentTime;
+        return currentTime - firstSent < SYSTEM_MESSAGE_LIFETIME;
     }
 
     void setTimeout(long timeout) {
-        timeExpires = timeout <= 0 ? -1 : 0;
+        firstSent = 0;
         this.timeout = timeout;
     }
 
+    long timeout() {
+        return timeout;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -149,9 +281,9 @@ class TOUSegment {
 
     @Override
     public String toString() {
-        return String.format("%16s[%s seq: %5d ack: %5d from %s:%5d to %s:%5d data offset: %3d size: %3d bytes]",
-                TOUSegment.class.getSimpleName(), tcpSegment.typeByteToString(), sequenceNumber() & 0xffff,
-                ackNumber() & 0xffff, sourceAddress, sourcePort(), destinationAddress, destinationPort(),
-                tcpSegment.dataOffset(), tcpSegment.size());
+        return String.format("%16s[%s seq: %10d ack: %10d from %s:%5d to %s:%5d data offset: %3d size: %3d bytes]",
+                TOUSegment.class.getSimpleName(), tcpSegment.typeByteToString(), sequenceNumber() & 0xffffffffL,
+                ackNumber() & 0xffffffffL, sourceAddress, sourcePort(), destinationAddress, destinationPort(),
+                tcpSegment.dataOffset(), tcpSegment.dataOffset() + dataSize());
     }
 }
@@ -0,0 +1,186 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The send buffer of a stream of a connection: a ring in direct memory which holds the bytes
+ * written but not sent yet, followed in the ring by the ones sent but not acknowledged yet.
+ * <p>
+ * A byte lives at the slot its offset in the stream maps to, so a data segment is just a range of
+ * offsets: the Sender cuts segments off the unsent bytes and copies them straight
+ * into datagrams, and they stay in place for retransmissions until the peer acknowledges them.
+ * The writers block only when the whole ring is taken. All the pointers are guarded by the
+ * monitor of the buffer, which the output stream waits on.
+ * <p>
+ * The ring is taken from {@link TOUBufferPool} by the first write and given back once everything
+ * in it is acknowledged and the connection has been idle for a while, see {@link #trim()}.
+ */
+final class TOUSendBuffer {
+    private ByteBuffer ring;
+    private final int capacity;
+    private final int mask;
+    // offsets in the stream, which are the sequence numbers of the main stream until other streams are used
+    private int acknowledged; // the offset of the oldest byte kept
+    private int cut; // the offset of the oldest byte not sent yet
+    private int end; // the offset past the newest byte
+
+    /**
+     * @param capacity the size of the ring, rounded up to a power of two
+     */
+    TOUSendBuffer(int capacity, int initialSequenceNumber) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        if (size < capacity) size <<= 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.acknowledged = initialSequenceNumber;
+        this.cut = initialSequenceNumber;
+        this.end = initialSequenceNumber;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the bytes a writer may append now
+     */
+    synchronized int free() {
+        return capacity - (end - acknowledged);
+    }
+
+    /**
+     * @return the bytes written but not cut into segments yet
+     */
+    synchronized int unsent() {
+        return end - cut;
+    }
+
+    /**
+     * @return the sequence number of the next segment to cut
+     */
+    synchronized int sequenceNumber() {
+        return cut;
+    }
+
+    /**
+     * Appends as much of the bytes as there is room for.
+     *
+     * @return the number of bytes appended
+     */
+    synchronized int put(byte[] b, int off, int len) {
+        int n = Math.min(len, free());
+        ByteBuffer ring = ring();
+        int index = end & mask;
+        int first = Math.min(n, capacity - index);
+        ring.position(index);
+        ring.put(b, off, first);
+        if (first < n) {
+            ring.position(0);
+            ring.put(b, off + first, n - first);
+        }
+        end += n;
+        return n;
+    }
+
+    /**
+     * @return false if there is no room for the byte
+     */
+    synchronized boolean put(byte b) {
+        if (free() == 0) return false;
+        ring().put(end & mask, b);
+        ++end;
+        return true;
+    }
+
+    /**
+     * Takes up to size unsent bytes for a new segment.
+     *
+     * @return the number of bytes taken, they start at the sequence number the call found
+     */
+    synchronized int cut(int size) {
+        int n = Math.min(size, end - cut);
+        cut += n;
+        return n;
+    }
+
+    /**
+     * Takes the unsent bytes before ackNumber as sent and acknowledged at once: the peer got them
+     * on the SYN of fast open. Wakes up the writers and flush().
+     */
+    synchronized void skip(int ackNumber) {
+        if (ackNumber - end > 0) {
+            ackNumber = end;
+        }
+        if (ackNumber - cut <= 0) return;
+
+        cut = ackNumber;
+        acknowledged = ackNumber;
+        notifyAll();
+    }
+
+    /**
+     * Frees the bytes before ackNumber and wakes up the writers.
+     */
+    synchronized void acknowledge(int ackNumber) {
+        // the ACK of our FIN is one past the data
+        if (ackNumber - cut > 0) {
+            ackNumber = cut;
+        }
+        if (ackNumber - acknowledged <= 0) return;
+
+        acknowledged = ackNumber;
+        notifyAll();
+    }
+
+    /**
+     * Copies the bytes of a segment into a datagram. Called by the Sender under the lock, so
+     * {@link #trim()} cannot give the ring back to the pool while a retransmission which lost
+     * the race with the ACK is still copying from it.
+     */
+    synchronized void get(int sequenceNumber, int size, ByteBuffer datagram) {
+        if (ring == null) {
+            // a retransmission which lost the race with the ACK, the peer drops it anyway
+            for (int i = 0; i < size; ++i) {
+                datagram.put((byte) 0);
+            }
+            return;
+        }
+        ByteBuffer source = ring.duplicate();
+        int index = sequenceNumber & mask;
+        int first = Math.min(size, capacity - index);
+        source.limit(index + first).position(index);
+        datagram.put(source);
+        if (first < size) {
+            source.limit(size - first).position(0);
+            datagram.put(source);
+        }
+    }
+
+    /**
+     * Gives the ring back to the pool if the peer has acknowledged everything in it. Called
+     * once the connection has been idle for a while; a copy still running holds the lock.
+     */
+    synchronized void trim() {
+        if (ring == null || acknowledged != end) return;
+        TOUBufferPool.give(ring);
+        ring = null;
+    }
+
+    /**
+     * Drops everything after the connection is aborted. The ring is not pooled, the Sender may
+     * still be copying a segment which was in flight.
+     */
+    synchronized void clear() {
+        cut = end;
+        acknowledged = end;
+        ring = null;
+        notifyAll();
+    }
+
+    private ByteBuffer ring() {
+        if (ring == null) {
+            ring = TOUBufferPool.take(capacity);
+        }
+        return ring;
+    }
+}
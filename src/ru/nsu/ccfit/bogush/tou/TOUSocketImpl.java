@@ -2,20 +2,36 @@ package ru.nsu.ccfit.bogush.tou;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import ru.nsu.ccfit.bogush.tcp.TCPSegment;
 import ru.nsu.ccfit.bogush.tcp.TCPSegmentType;
+import ru.nsu.ccfit.bogush.util.SPSCRingBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 
 import static ru.nsu.ccfit.bogush.tcp.TCPSegmentType.*;
+import static ru.nsu.ccfit.bogush.tou.TOUConnectionState.*;
 
 class TOUSocketImpl extends SocketImpl {
-    private static final int PENDING_ACKS_QUEUE_CAPACITY = 32;
+    private static final int IPTOS_LOWDELAY = 0x10;
+    // java.net.SocketOptions has neither cork nor the transport knobs, these IDs are ours
+    static final int TCP_CORK = 0x4001;
+    static final int TOU_MSS = 0x4002;
+    static final int TOU_INITIAL_RTO = 0x4003;
+    static final int TOU_SEND_WINDOW = 0x4004;
+    static final int TOU_FASTOPEN = 0x4005;
 
     static { TOULog4JUtils.initIfNotInitYet(); }
     private static final Logger LOGGER = LogManager.getLogger(TOUSocketImpl.class.getSimpleName());
@@ -24,38 +40,165 @@ class TOUSocketImpl extends SocketImpl {
     private DatagramSocket udpSocket;
     final TOUFactory factory;
 
-    private final Object dataSegmentMonitor = new Object();
-    private final Object systemMessageMonitor = new Object();
-    private final Object pendingAcksMutex = new Object();
-    private TOUSystemMessage lastSystemMessage;
-    private HashMap<Short, byte[]> dataSegmentMap;
-    private WeakHashMap<InetSocketAddress, TOUSocketImpl> implMap;
-    private ArrayBlockingQueue<TOUSystemMessage> pendingAcks;
+    // connection state machine, guarded by stateMonitor
+    private final Object stateMonitor = new Object();
+    private final ConcurrentLinkedQueue<TOUSystemMessage> mailbox = new ConcurrentLinkedQueue<>();
+    private volatile TOUConnectionState state = CLOSED;
+    // why the connection was dropped without a tear down, null while it was not
+    private volatile String abortReason;
+    private volatile long lastReceived;
+    private boolean keepAlive = false;
+    private int keepAliveProbes;
+    private ScheduledFuture<?> idleCheck;
+    private TOUSystemMessage syn;
+    private TOUSystemMessage synack;
+    private TOUSystemMessage fin;
+    private volatile boolean finPending = false;
+    private ScheduledFuture<?> closeTimeout;
+    // a listener finishes handshakes on the Receiver thread: the ones going on and the ones over but not
+    // accepted yet by the peer's address, and the ones over in the order accept() takes them
+    private HashMap<InetSocketAddress, Handshake> handshakes;
+    private ArrayDeque<Handshake> backlog;
+    private int backlogCapacity;
+    // fast open: the SYN of a client with a cookie waits for the first write to carry its data
+    private volatile boolean synDeferred = false;
+    // the bytes of data on our SYN
+    private int fastOpenSize;
+    private long handshakeTimeout = TOUConstants.HANDSHAKE_TIMEOUT;
+    // a fast open connection is handed over before its handshake is over, this gives up on it
+    private ScheduledFuture<?> handshakeCheck;
+
+    // the connections by their local ports and peers, see connection()
+    private static final ConcurrentHashMap<List<Object>, TOUSocketImpl> CONNECTIONS = new ConcurrentHashMap<>();
+
+    private static final TOUMetricsCache METRICS =
+            new TOUMetricsCache(TOUConstants.METRICS_CACHE_SIZE, TOUConstants.METRICS_TIMEOUT);
+    // what the previous connections to the peer ended with, null if there is nothing
+    private TOUMetricsCache.Metrics metrics;
+
+    // receive side: touched by the communicator's Receiver thread only
+    // the sizes of the segments received behind a gap by their sequence numbers, they may overlap
+    // after the peer repacketizes; each stream keeps their data in its own order, see TOUStream
+    private TreeMap<Integer, Integer> outOfOrderSegments;
+    // read by the Sender as well to piggyback it on data segments
+    private volatile int expectedSequenceNumber;
+    // the stream of the socket's own input and output, null until the handshake is over
+    private TOUStream mainStream;
+    // the streams by their ids, the main one included
+    private final ConcurrentHashMap<Integer, TOUStream> streams = new ConcurrentHashMap<>();
+    // the highest id of the streams the peer has opened
+    private int highestPeerStreamId = 0;
+    // the streams with data delivered in the current batch, their readers are woken up at its end
+    private final List<TOUStream> deliveredStreams = new ArrayList<>();
+    // the streams the peer has opened and the application has not accepted yet, guarded by stateMonitor
+    private final ArrayDeque<TOUStream> incomingStreams = new ArrayDeque<>();
+    // the id of the next stream we open, guarded by stateMonitor
+    private int nextStreamId = 0;
+    // the budget shared by the connections of a listener, null for a connection we initiate
+    private TOUReceiveMemory receiveMemory;
+    // the bytes of both receive queues charged to receiveMemory
+    private final AtomicInteger chargedBytes = new AtomicInteger();
+    private ConcurrentHashMap<InetSocketAddress, TOUSocketImpl> implMap;
+    // data segments in flight
+    private TOURetransmissionQueue retransmissionQueue;
+    // how many segments past the ACK it came with the peer can take, from the latest ACK
+    private volatile int peerWindow;
+    private int peerWindowAck;
+    // the receive window we told the peer last
+    private volatile int advertisedWindow;
+    // segments the receive window may span at most now, tuned by the reader, see tuneReceiveWindow
+    private volatile int receiveWindowLimit;
+    // ms the peer took to fill our window at best, an upper bound of the round trip time; -1 until measured
+    private volatile long receiveRtt = -1;
+    // the Receiver thread counts the segments delivered until the ones of the window advertised at the mark
+    private int deliveredSegments;
+    private int rttMarkSegments;
+    private long rttMarkTime;
+    // the readers of all the streams count the segments they take in the current round of autotuning
+    private final Object drainMonitor = new Object();
+    private int drainedSegments; // under the drain monitor
+    private long drainStart; // under the drain monitor
     TOUSocketOutputStream outputStream = null;
     private TOUSocketInputStream inputStream = null;
+    // the output streams the Sender goes through, the main one and those of the other streams
+    private volatile TOUSocketOutputStream[] outputs = new TOUSocketOutputStream[0];
+    // true while the connection waits on the communicator's ready-queue
+    private final AtomicBoolean queued = new AtomicBoolean(false);
     private TOUCommunicator communicator;
     private InetAddress localAddress;
-    private boolean closePending = false;
-    private boolean closed = false;
-    private boolean connected = false;
+    private volatile boolean closePending = false;
+    private volatile boolean closed = false;
     private boolean isAcceptedImpl = false;
-    short initialSequenceNumber = 0;
+    private int linger = -1; // seconds, -1 if SO_LINGER is off
+    private volatile int trafficClass = 0; // IP_TOS
+    private volatile boolean noDelay = false; // TCP_NODELAY, Nagle's algorithm is on by default
+    private volatile boolean corked = TOUConstants.CORK; // TCP_CORK
+    // the buffer sizes and the transport knobs take effect on the connections set up afterwards
+    private volatile int sendBufferSize = TOUConstants.SEND_BUFFER_SIZE; // SO_SNDBUF
+    private volatile int receiveBufferSize = TOUConstants.RECEIVE_BUFFER_SIZE; // SO_RCVBUF
+    // set SO_RCVBUF turns autotuning off and fixes the receive window at the buffer, like in Linux
+    private volatile boolean receiveBufferLocked = false;
+    private volatile int soTimeout = 0; // SO_TIMEOUT of read and accept, 0 waits forever
+    private volatile int mss = Math.min(TOUConstants.MSS, TOUConstants.MAX_DATA_SIZE); // TOU_MSS
+    private volatile int initialRto = TOUConstants.INITIAL_RTO; // TOU_INITIAL_RTO
+    private volatile int sendWindow = Math.min(TOUConstants.SEND_WINDOW, 1 << 15); // TOU_SEND_WINDOW
+    private volatile boolean fastOpen = false; // TOU_FASTOPEN
+    // send credit in bytes, touched by the communicator's Sender thread only
+    int deficit = 0;
+    // the output stream which goes first in the next turn, touched by the Sender thread only
+    int outputTurn = 0;
+    int initialSequenceNumber = 0;
+    // the sequence number of the next data segment, the streams take them in turn
+    private volatile int sendSequenceNumber = 0;
 
     TOUSocketImpl() {
         LOGGER.traceEntry();
 
-        try {
-            this.localAddress = InetAddress.getLocalHost();
-        } catch (UnknownHostException e) {
-            LOGGER.catching(e);
-            e.printStackTrace();
-        }
-
+        this.localAddress = localHost();
         this.factory = new TOUFactory(this);
 
         LOGGER.traceExit();
     }
 
+    /**
+     * A connection the listener has answered the SYN of, guarded by the listener's stateMonitor.
+     */
+    private static final class Handshake {
+        final InetSocketAddress remote;
+        final TOUSystemMessage syn;
+        // null for a fast open SYN, accept() answers it
+        final TOUSystemMessage synack;
+        boolean established;
+        ScheduledFuture<?> expiry;
+        // what the peer sends once the handshake is over, handed to the connection when it is accepted
+        final List<TOUSegment> held = new ArrayList<>();
+
+        Handshake(TOUSystemMessage syn, TOUSystemMessage synack) {
+            this.remote = new InetSocketAddress(syn.sourceAddress(), syn.sourcePort());
+            this.syn = syn;
+            this.synack = synack;
+        }
+    }
+
+    // looked up once, the lookup may take a round trip to the name service
+    private static final class LocalHost {
+        static final InetAddress ADDRESS = lookup();
+
+        private static InetAddress lookup() {
+            try {
+                return InetAddress.getLocalHost();
+            } catch (UnknownHostException e) {
+                LOGGER.catching(e);
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    static InetAddress localHost() {
+        return LocalHost.ADDRESS;
+    }
+
     InetAddress localAddress() {
         return localAddress;
     }
@@ -80,28 +223,298 @@ class TOUSocketImpl extends SocketImpl {
         return new InetSocketAddress(address, port);
     }
 
-    private boolean isConnected() {
-        return connected;
+    private List<Object> connectionKey() {
+        return Arrays.asList(localport, remoteSocketAddress());
+    }
+
+    /**
+     * Finds the impl of a connected socket. Java 8 hands out the impl's own streams from the socket,
+     * later versions wrap them, then this is the only way from a socket to its impl.
+     *
+     * @return null if there is no such connection
+     */
+    static TOUSocketImpl connection(int localPort, SocketAddress remote) {
+        return CONNECTIONS.get(Arrays.asList(localPort, remote));
+    }
+
+    TOUConnectionState state() {
+        return state;
     }
 
     boolean isClosedOrPending() {
         return closed || closePending;
     }
 
-    byte[] nextDataSegment(short sequenceNumber)
-            throws InterruptedException {
-        LOGGER.trace("Request next data segment with seq: {}", sequenceNumber);
+    /**
+     * @return true if the connection was reset by the peer or reaped as dead
+     */
+    boolean isAborted() {
+        return abortReason != null;
+    }
+
+    String abortReason() {
+        return abortReason;
+    }
+
+    /**
+     * Blocks until the next in-order data segment of the stream is available, for SO_TIMEOUT at most.
+     *
+     * @param stream null for the main stream
+     * @return null if the socket was closed or the peer has finished sending on the stream
+     */
+    byte[] nextDataSegment(TOUStream stream)
+            throws InterruptedException, SocketTimeoutException {
+        LOGGER.traceEntry();
 
-        byte[] dataSegment;
-        synchronized (dataSegmentMonitor) {
-            while (!dataSegmentMap.containsKey(sequenceNumber)) {
-                dataSegmentMonitor.wait();
-                if (isClosedOrPending()) return null;
+        if (state == SYN_SENT && !awaitHandshake()) {
+            return LOGGER.traceExit((byte[]) null);
+        }
+
+        SPSCRingBuffer<byte[]> inOrderSegments = (stream == null ? mainStream : stream).inOrder();
+        int timeout = soTimeout;
+        if (timeout == 0) {
+            byte[] data = inOrderSegments.take();
+            if (data != null) {
+                uncharge(data.length);
+                tuneReceiveWindow();
             }
-            dataSegment = dataSegmentMap.get(sequenceNumber);
+            updateWindow();
+            return LOGGER.traceExit(data);
+        }
+        byte[] data = inOrderSegments.poll(timeout, TimeUnit.MILLISECONDS);
+        if (data == null && !inOrderSegments.isClosed()) {
+            throw LOGGER.throwing(new SocketTimeoutException("Read timed out"));
+        }
+        if (data != null) {
+            uncharge(data.length);
+            tuneReceiveWindow();
+        }
+        updateWindow();
+        return LOGGER.traceExit(data);
+    }
+
+    /**
+     * Called by the reader after it takes a segment. The peer learns about a window which has
+     * been closing only from our ACKs, so once half of it is open again it is told at once.
+     */
+    private void updateWindow() {
+        int limit = receiveWindowLimit;
+        if (advertisedWindow >= limit / 2 || receiveWindow() < limit / 2) return;
+        if (!state.isSynchronized() || state.isRemoteClosed()) return;
+
+        LOGGER.trace("window update");
+        send(TOUFactory.createACK(expectedSequenceNumber, localAddress, localport, address, port));
+    }
+
+    /**
+     * Dynamic right-sizing of the receive window, called by the reader after it takes a segment.
+     * <p>
+     * Once per round trip the window is compared to what the reader took in that time: the peer
+     * needs twice that much to keep the data flowing while our ACKs are on their way and to let
+     * the rate grow, so the window grows to it, up to the receive buffer. If the reader keeps up
+     * and the peer sends less than that, the window shrinks back halfway to it, but not below
+     * the initial one, so idle connections hold little memory.
+     */
+    private void tuneReceiveWindow() {
+        if (receiveBufferLocked) return;
+
+        // the readers of the streams of the connection drain one window together
+        synchronized (drainMonitor) {
+            ++drainedSegments;
+            long now = System.currentTimeMillis();
+            long rtt = receiveRtt();
+            if (rtt < 0 || now - drainStart < Math.max(rtt, 1)) return;
+
+            int limit = receiveWindowLimit;
+            int target = Math.min(2 * drainedSegments, maxReceiveWindow());
+            if (target > limit && !isUnderMemoryPressure()) {
+                LOGGER.debug("grow receive window: {}->{} segments", limit, target);
+                receiveWindowLimit = target;
+            } else if (heldSegments() == 0) {
+                int shrunk = Math.max((limit + target) / 2, minReceiveWindow());
+                if (shrunk < limit) {
+                    LOGGER.debug("shrink receive window: {}->{} segments", limit, shrunk);
+                    receiveWindowLimit = shrunk;
+                }
+            }
+            drainedSegments = 0;
+            drainStart = now;
+        }
+    }
+
+    /**
+     * @return the round trip time autotuning works with, -1 until there is a sample
+     */
+    private long receiveRtt() {
+        long rtt = receiveRtt;
+        long smoothedRtt = retransmissionQueue == null ? -1 : retransmissionQueue.smoothedRtt();
+        if (smoothedRtt < 0) return rtt;
+        return rtt < 0 ? smoothedRtt : Math.min(rtt, smoothedRtt);
+    }
+
+    /**
+     * Called by the Receiver thread for every segment it delivers. Without timestamps in the
+     * header the receiver times how long the peer takes to send the window it was given, which
+     * is at least one round trip. A peer which does not use the whole window makes the samples
+     * grow along with the window, so only the smallest one is kept, like Linux does.
+     */
+    private void measureReceiveRtt() {
+        ++deliveredSegments;
+        if (deliveredSegments - rttMarkSegments < 0) return;
+
+        long now = System.currentTimeMillis();
+        if (rttMarkTime != 0) {
+            long sample = Math.max(now - rttMarkTime, 1);
+            long rtt = receiveRtt;
+            if (rtt < 0 || sample < rtt) {
+                receiveRtt = sample;
+            }
+        }
+        rttMarkSegments = deliveredSegments + Math.max(advertisedWindow, 1);
+        rttMarkTime = now;
+    }
+
+    /**
+     * @return how many more segments the peer may send past the ACK
+     */
+    private int receiveWindow() {
+        if (mainStream == null) {
+            return receiveBufferLocked ? maxReceiveWindow() : initialReceiveWindow();
+        }
+        // the streams share the window
+        int window = Math.max(0, Math.min(mainStream.inOrder().remainingCapacity(),
+                receiveWindowLimit - heldSegments()));
+        return isUnderMemoryPressure() ? Math.min(window, TOUConstants.PRESSURE_WINDOW) : window;
+    }
+
+    /**
+     * @return the segments delivered to the streams and not read yet
+     */
+    private int heldSegments() {
+        if (streams.size() == 1) return mainStream.inOrder().size();
+        int held = 0;
+        for (TOUStream stream : streams.values()) {
+            held += stream.inOrder().size();
+        }
+        return held;
+    }
+
+    boolean isUnderMemoryPressure() {
+        return receiveMemory != null && receiveMemory.isUnderPressure();
+    }
+
+    /**
+     * Called by the Receiver thread before it keeps a payload.
+     *
+     * @return false if the listener's receive memory has no room for it
+     */
+    boolean charge(int size) {
+        if (receiveMemory == null) return true;
+        if (!receiveMemory.charge(size)) return false;
+        chargedBytes.addAndGet(size);
+        return true;
+    }
+
+    void uncharge(int size) {
+        if (receiveMemory == null) return;
+        // the reader may still drain the ring after the connection has given everything back
+        int charged;
+        int n;
+        do {
+            charged = chargedBytes.get();
+            n = Math.min(size, charged);
+            if (n == 0) return;
+        } while (!chargedBytes.compareAndSet(charged, charged - n));
+        receiveMemory.release(n);
+    }
+
+    /**
+     * Gives back what is left in the receive queues once nobody will read it.
+     */
+    private void releaseReceiveMemory() {
+        if (receiveMemory == null) return;
+        receiveMemory.release(chargedBytes.getAndSet(0));
+    }
+
+    private int maxReceiveWindow() {
+        // the window field counts segments in 16 bits
+        return Math.min(Math.max(1, receiveBufferSize / TOUConstants.MAX_DATA_SIZE), 1 << 14);
+    }
+
+    private int minReceiveWindow() {
+        return Math.max(1, Math.min(TOUConstants.INITIAL_RECEIVE_WINDOW, maxReceiveWindow()));
+    }
+
+    /**
+     * @return the window the previous connection to the peer was tuned to, the minimal one otherwise
+     */
+    private int initialReceiveWindow() {
+        if (metrics == null || metrics.receiveWindow <= 0) return minReceiveWindow();
+        return Math.max(minReceiveWindow(), Math.min(metrics.receiveWindow, maxReceiveWindow()));
+    }
+
+    /**
+     * Called once the connection is released, unless it was aborted.
+     */
+    private void saveMetrics() {
+        if (retransmissionQueue == null || mainStream == null) return;
+
+        long smoothedRtt = retransmissionQueue.smoothedRtt();
+        long rttVariation = retransmissionQueue.rttVariation();
+        if (smoothedRtt < 0) {
+            // a connection which only received has the time the peer took to fill the window
+            smoothedRtt = receiveRtt;
+            rttVariation = smoothedRtt / 2;
         }
+        METRICS.update(address, smoothedRtt, rttVariation, receiveBufferLocked ? 0 : receiveWindowLimit);
+    }
+
+    private void advertiseWindow(TOUSegment segment) {
+        int window = receiveWindow();
+        segment.window(window);
+        advertisedWindow = window;
+    }
 
-        return dataSegment;
+    int sendBufferSize() {
+        return sendBufferSize;
+    }
+
+    int mss() {
+        return mss;
+    }
+
+    private void initSendQueue() {
+        int capacity = Integer.highestOneBit(sendWindow);
+        if (capacity < sendWindow) capacity <<= 1;
+        retransmissionQueue = new TOURetransmissionQueue(this, initialSequenceNumber, capacity, initialRto);
+        if (metrics != null) {
+            retransmissionQueue.seed(metrics.smoothedRtt, metrics.rttVariation);
+        }
+    }
+
+    private void initReceiveQueues(int initialReceiveSequenceNumber) {
+        // sequence numbers wrap around, the ones in the receive window still compare by their distance
+        outOfOrderSegments = new TreeMap<>((a, b) -> a - b);
+        // the receive window in segments, the peer may send up to MAX_DATA_SIZE in each; the ring holds
+        // references only, the window that autotuning lets the peer use decides how much memory is taken
+        receiveWindowLimit = receiveWindow();
+        expectedSequenceNumber = initialReceiveSequenceNumber;
+        // the offsets of the main stream start as the peer's sequence numbers
+        mainStream = new TOUStream(this, 0, initialReceiveSequenceNumber, maxReceiveWindow());
+        streams.put(0, mainStream);
+        drainStart = System.currentTimeMillis();
+    }
+
+    /**
+     * An accepted connection takes the sizes and the transport knobs from the listener, like TCP.
+     */
+    private void inheritOptions(TOUSocketImpl listener) {
+        sendBufferSize = listener.sendBufferSize;
+        receiveBufferSize = listener.receiveBufferSize;
+        receiveBufferLocked = listener.receiveBufferLocked;
+        mss = listener.mss;
+        initialRto = listener.initialRto;
+        sendWindow = listener.sendWindow;
     }
 
     @Override
@@ -122,13 +535,8 @@ class TOUSocketImpl extends SocketImpl {
             throws IOException {
         LOGGER.traceEntry("address: {} timeout: {}", ()->address, ()->timeout);
 
-        // ignores timeout
-
         InetSocketAddress socketAddress = (InetSocketAddress) address;
-        super.address = socketAddress.getAddress();
-        super.port = socketAddress.getPort();
-
-        connect(super.address, super.port);
+        connect(socketAddress.getAddress(), socketAddress.getPort(), timeout);
 
         LOGGER.traceExit();
     }
@@ -136,39 +544,81 @@ class TOUSocketImpl extends SocketImpl {
     @Override
     protected void connect(InetAddress address, int port)
             throws IOException {
-        LOGGER.traceEntry("{}:{}", address, port);
+        connect(address, port, 0);
+    }
 
-        bind(localAddress, 0);
+    private void connect(InetAddress address, int port, int timeout)
+            throws IOException {
+        LOGGER.traceEntry("{}:{} timeout: {}", address, port, timeout);
+
+        TOUEndpointPool.Endpoint endpoint = udpSocket == null ? TOUEndpointPool.take(localAddress) : null;
+        if (endpoint != null) {
+            udpSocket = endpoint.udpSocket;
+            localport = udpSocket.getLocalPort();
+            implMap = endpoint.implMap;
+            communicator = endpoint.communicator;
+        } else {
+            if (udpSocket == null) {
+                bind(localAddress, 0);
+            }
+            implMap = new ConcurrentHashMap<>();
+            communicator = new TOUCommunicator(implMap, udpSocket);
+        }
 
         this.address = address;
         this.port = port;
 
-        implMap = new WeakHashMap<>();
         implMap.put(remoteSocketAddress(), this);
-        communicator = new TOUCommunicator(implMap, udpSocket);
+        CONNECTIONS.put(connectionKey(), this);
         communicator.startIfNotAlive();
 
-        TOUSystemMessage syn = sendSYNorFIN(SYN);
-        TOUSystemMessage synack = receiveSYNACKorFINACK(syn);
-        if (synack == null) return;
+        synchronized (stateMonitor) {
+            metrics = METRICS.get(address);
+            syn = TOUFactory.createSYNorFIN(SYN, localAddress, localport, address, port);
+            state = SYN_SENT;
+            handshakeTimeout = timeout > 0 ? timeout : TOUConstants.HANDSHAKE_TIMEOUT;
+            if (fastOpen && metrics != null && metrics.fastOpenCookie != null) {
+                // like TCP_FASTOPEN_CONNECT, the output stream starts right after the SYN
+                initialSequenceNumber = syn.sequenceNumber() + 1;
+                sendSequenceNumber = initialSequenceNumber;
+                synDeferred = true;
+            } else {
+                if (fastOpen) {
+                    // asks the listener for a cookie
+                    syn = TOUFactory.withFastOpen(syn, null, new byte[0]);
+                }
+                send(syn);
+            }
+        }
 
-        communicator.removeByReference(syn);
-        pendingAcks = new ArrayBlockingQueue<>(PENDING_ACKS_QUEUE_CAPACITY);
-        dataSegmentMap = new HashMap<>();
-        initialSequenceNumber = synack.ackNumber();
+        if (synDeferred) {
+            LOGGER.info("================ Connecting to {}:{} with fast open ================", address, port);
+            LOGGER.traceExit();
+            return;
+        }
 
-        sendACK(synack);
-        connected = true;
+        // the peer may have sent its FIN already, the connection is established all the same
+        if (!awaitState(s -> s != SYN_SENT, handshakeTimeout) ||
+                !state().isSynchronized()) {
+            synchronized (stateMonitor) {
+                state = CLOSED;
+            }
+            CONNECTIONS.remove(connectionKey(), this);
+            syn.cancel();
+            communicator.stop();
+            communicator = null;
+            udpSocket.close();
+            if (isAborted()) {
+                throw LOGGER.throwing(new ConnectException("Connection refused"));
+            }
+            throw LOGGER.throwing(new SocketTimeoutException("connect timed out"));
+        }
 
         LOGGER.info("================ Successfully connected to {}:{} ================", address, port);
 
         LOGGER.traceExit();
     }
 
-    private void disconnect() {
-        connected = false;
-    }
-
     @Override
     protected void bind(InetAddress address, int port)
             throws IOException {
@@ -182,22 +632,51 @@ class TOUSocketImpl extends SocketImpl {
             address = localAddress;
         }
 
-        this.udpSocket = new DatagramSocket(port, address);
+        this.udpSocket = openUdpSocket(address, port);
         this.localport = udpSocket.getLocalPort();
         this.localAddress = udpSocket.getLocalAddress();
-        udpSocket.setSoTimeout(TOUConstants.UDP_RECV_TIMEOUT);
 
         LOGGER.trace("bound successfully to {}:{}", localAddress, localport);
 
         LOGGER.traceExit();
     }
 
+    /**
+     * Binds a UDP socket set up for a communicator, used by {@link TOUEndpointPool} as well.
+     */
+    static DatagramSocket openUdpSocket(InetAddress address, int port)
+            throws IOException {
+        // the communicator receives through the channel of the socket
+        DatagramSocket udpSocket = DatagramChannel.open().socket();
+        try {
+            udpSocket.bind(new InetSocketAddress(address, port));
+            if (TOUConstants.UDP_SEND_BUFFER_SIZE > 0) {
+                udpSocket.setSendBufferSize(TOUConstants.UDP_SEND_BUFFER_SIZE);
+            }
+            if (TOUConstants.UDP_RECEIVE_BUFFER_SIZE > 0) {
+                udpSocket.setReceiveBufferSize(TOUConstants.UDP_RECEIVE_BUFFER_SIZE);
+            }
+        } catch (IOException e) {
+            udpSocket.close();
+            throw e;
+        }
+        return udpSocket;
+    }
+
     @Override
     protected void listen(int backlog)
             throws IOException {
         LOGGER.traceEntry("backlog: {}", backlog);
 
-        implMap = new WeakHashMap<>();
+        synchronized (stateMonitor) {
+            this.handshakes = new HashMap<>();
+            this.backlog = new ArrayDeque<>();
+            this.backlogCapacity = backlog > 0 ? backlog : TOUConstants.DEFAULT_BACKLOG;
+            state = LISTEN;
+        }
+
+        implMap = new ConcurrentHashMap<>();
+        receiveMemory = new TOUReceiveMemory(TOUConstants.RECEIVE_MEMORY);
         LOGGER.trace("put this into implMap at key {}", this::localSocketAddress);
         implMap.put(localSocketAddress(), this);
         communicator = new TOUCommunicator(implMap, udpSocket);
@@ -212,38 +691,81 @@ class TOUSocketImpl extends SocketImpl {
         TOUSocketImpl impl = (TOUSocketImpl) s;
         LOGGER.traceEntry(()->impl);
 
-        TOUSystemMessage syn = receiveSYN(localAddress, localport);
-        if (syn == null) return;
-
-        TOUSystemMessage synack = sendSYNACKorFINACK(syn);
-        if (synack == null) return;
-
-        communicator.removeByReference(synack);
-
-        impl.localAddress = localAddress;
-        impl.localport = localport;
-        impl.address = syn.sourceAddress();
-        impl.port = syn.sourcePort();
-        impl.communicator = communicator;
-        impl.connected = true;
-        impl.dataSegmentMap = new HashMap<>();
-        impl.pendingAcks = new ArrayBlockingQueue<>(PENDING_ACKS_QUEUE_CAPACITY);
-        impl.initialSequenceNumber = synack.ackNumber();
-        impl.isAcceptedImpl = true;
-
-        implMap.put(impl.remoteSocketAddress(), impl);
+        int timeout = soTimeout;
+        long deadline = System.currentTimeMillis() + timeout;
+        Handshake handshake;
+        synchronized (stateMonitor) {
+            while (backlog.isEmpty() && state == LISTEN) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeout > 0 && remaining <= 0) {
+                    throw LOGGER.throwing(new SocketTimeoutException("Accept timed out"));
+                }
+                try {
+                    stateMonitor.wait(timeout > 0 ? remaining : 0);
+                } catch (InterruptedException e) {
+                    throw LOGGER.throwing(new InterruptedIOException(e.getMessage()));
+                }
+            }
+            if (state != LISTEN) {
+                throw LOGGER.throwing(new SocketException("Socket closed"));
+            }
+            handshake = backlog.poll();
+
+            impl.localAddress = localAddress;
+            impl.localport = localport;
+            impl.address = handshake.remote.getAddress();
+            impl.port = handshake.remote.getPort();
+            impl.communicator = communicator;
+            impl.implMap = implMap;
+            impl.receiveMemory = receiveMemory;
+            impl.isAcceptedImpl = true;
+            impl.inheritOptions(this);
+
+            TOUSystemMessage syn = handshake.syn;
+            synchronized (impl.stateMonitor) {
+                impl.metrics = METRICS.get(impl.address);
+                impl.syn = syn;
+                impl.synack = handshake.synack != null ? handshake.synack : impl.factory.createSYNACKorFINACK(syn);
+                impl.initialSequenceNumber = impl.synack.sequenceNumber() + 1;
+                impl.sendSequenceNumber = impl.initialSequenceNumber;
+                impl.peerWindow = syn.window();
+                impl.peerWindowAck = impl.initialSequenceNumber;
+                impl.initSendQueue();
+                impl.initReceiveQueues(syn.sequenceNumber() + 1);
+                if (handshake.synack == null) {
+                    // the data of a fast open SYN is there to read, the handshake goes on in background
+                    impl.fastOpen(syn);
+                    impl.state = SYN_RCVD;
+                    impl.send(impl.synack);
+                    impl.handshakeCheck = TOUTimer.schedule(impl::handshakeTimedOut, TOUConstants.HANDSHAKE_TIMEOUT);
+                } else {
+                    impl.establish();
+                }
+            }
 
-        TOUSystemMessage ack = receiveACK(syn, synack);
-        if (ack == null) return;
+            // from now on the segments of the peer go to the impl, retransmissions of the SYN are ignored
+            handshakes.remove(handshake.remote);
+            implMap.put(impl.remoteSocketAddress(), impl);
+            CONNECTIONS.put(impl.connectionKey(), impl);
+        }
+        if (!handshake.held.isEmpty()) {
+            // the peer may have sent data and even its FIN already, the connection is accepted all the same
+            communicator.onReceiver(() -> communicator.replay(handshake.held));
+        }
 
         LOGGER.trace("Accepted impl: {}", impl);
 
         LOGGER.info("================ Successfully accepted connection from {}:{} ================",
-                ack.sourceAddress(), ack.sourcePort());
+                impl.address, impl.port);
 
         LOGGER.traceExit();
     }
 
+    /**
+     * Returns at once unless SO_LINGER is on: the output is drained and the FIN exchange
+     * is carried out in background, see {@link #sendFINIfPending()} and {@link #release()}.
+     * With SO_LINGER on and a zero timeout the connection is reset instead.
+     */
     @Override
     protected void close()
             throws IOException {
@@ -263,102 +785,244 @@ class TOUSocketImpl extends SocketImpl {
 
         LOGGER.debug("close connection");
 
-//        LOGGER.debug("wait until maps and queues are empty");
-//        try {
-//            blockUntilContainersEmpty();
-//        } catch (InterruptedException e) {
-//            LOGGER.catching(e);
-//        }
-
-        if (isConnected()) {
-            LOGGER.debug("process 3-way tear down handshake");
-            activeClose();
+        // the data written on a fast open connection goes once its handshake is over
+        if (linger != 0 && !synDeferred) {
+            awaitState(st -> st != SYN_SENT && st != SYN_RCVD, handshakeTimeout);
         }
 
-        if (outputStream != null) {
-            LOGGER.debug("wait for communicator to flush output buffer");
-            outputStream.flush();
+        synchronized (stateMonitor) {
+            if (linger == 0) {
+                abortiveClose();
+            } else if (state == ESTABLISHED || state == CLOSE_WAIT) {
+                finPending = true;
+                closeTimeout = TOUTimer.schedule(this::closeTimedOut, TOUConstants.CLOSE_TIMEOUT);
+            } else {
+                release();
+            }
         }
 
-        if (!isAcceptedImpl && communicator != null) {
-            LOGGER.debug("wait until communicator sends all segments");
-            try {
-                communicator.waitUntilQueueIsEmpty();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        // a partial segment held back by Nagle's algorithm or cork goes now
+        pushHeldSegment();
+        sendFINIfPending();
+
+        if (linger > 0 && !awaitState(st -> st.isTerminal() || st == FIN_WAIT_2, TimeUnit.SECONDS.toMillis(linger))) {
+            LOGGER.debug("linger timed out in state {}", state());
         }
 
-        closed = true;
+        LOGGER.traceExit();
+    }
+
+    /**
+     * Share of the Sender among the connections of the communicator: the IP precedence bits
+     * of the traffic class, plus one.
+     */
+    int weight() {
+        return 1 + ((trafficClass >> 5) & 0b111);
+    }
+
+    /**
+     * @return true if the traffic class asks for low delay, such connections are served first
+     */
+    boolean isInteractive() {
+        return (trafficClass & IPTOS_LOWDELAY) != 0;
+    }
 
-        synchronized (systemMessageMonitor) {
-            systemMessageMonitor.notifyAll();
+    /**
+     * Nagle's algorithm and cork: a segment shorter than the MSS waits in the output buffer
+     * for more data while older data is unacknowledged, or for as long as the socket is corked.
+     * A flush or close pushes it out anyway, see {@link TOUSocketOutputStream#holdsPartialSegment()}.
+     *
+     * @return true if the Sender should leave the tail of an output buffer where it is
+     */
+    boolean holdsPartialSegment() {
+        if (closePending || closed) return false;
+        // the data of a fast open connect waits for the handshake, see canSend
+        if (retransmissionQueue == null) return false;
+        return corked || !noDelay && !retransmissionQueue.isEmpty();
+    }
+
+    private void pushHeldSegment() {
+        if (hasUnsentOutput()) {
+            outputReady();
         }
+    }
 
-        synchronized (dataSegmentMonitor) {
-            dataSegmentMonitor.notifyAll();
+    /**
+     * @return true if any of the output streams has something to send
+     */
+    private boolean hasUnsentOutput() {
+        for (TOUSocketOutputStream output : outputs) {
+            if (output.pending() > 0) return true;
         }
+        return false;
+    }
 
-        if (isAcceptedImpl) return;
+    TOUSocketOutputStream[] outputs() {
+        return outputs;
+    }
 
-        if (udpSocket != null) {
-            LOGGER.debug("close UDP socket: {}", ()->TOULog4JUtils.toString(udpSocket));
-            udpSocket.close();
+    /**
+     * Called whenever an output stream is added, or one of the other streams is done sending.
+     */
+    private void updateOutputs() {
+        synchronized (streams) {
+            List<TOUSocketOutputStream> list = new ArrayList<>();
+            if (outputStream != null) {
+                list.add(outputStream);
+            }
+            for (TOUStream stream : streams.values()) {
+                if (stream.output() != null && !stream.isOutputFinished()) {
+                    list.add(stream.output());
+                }
+            }
+            outputs = list.toArray(new TOUSocketOutputStream[0]);
         }
+    }
 
-        if (communicator != null) {
-            communicator.stop();
-            communicator = null;
+    /**
+     * Called by the output streams when there is data for the Sender, and by the Sender when the
+     * connection still has some after its turn. Puts the connection on the communicator's
+     * ready-queue unless it is already there, so the Sender picks the data up at once instead
+     * of on its next poll.
+     */
+    void outputReady() {
+        if (synDeferred) {
+            sendDeferredSYN();
         }
+        if (queued.compareAndSet(false, true)) {
+            communicator.outputReady(this);
+        }
+    }
 
-        LOGGER.traceExit();
+    /**
+     * Called by the Sender when it takes the connection off the ready-queue, before flushing,
+     * so that anything written after that queues the connection again.
+     */
+    void dequeued() {
+        queued.set(false);
     }
 
-    private void activeClose()  {
-        LOGGER.traceEntry();
+    /**
+     * Called by the communicator's Sender thread after it flushes the output buffer
+     * and by {@link #close()}. The FIN goes once the output buffer is drained.
+     */
+    void sendFINIfPending() {
+        if (!finPending) return;
+        if (hasUnsentOutput()) return;
+
+        synchronized (stateMonitor) {
+            if (!finPending) return;
+            finPending = false;
+            if (state != ESTABLISHED && state != CLOSE_WAIT) return;
+
+            LOGGER.debug("process tear down handshake");
+            fin = TOUFactory.createSYNorFIN(FIN, localAddress, localport, address, port);
+            fin.sequenceNumber(sendSequenceNumber());
+            state = state == CLOSE_WAIT ? LAST_ACK : FIN_WAIT_1;
+            send(fin);
+            stateMonitor.notifyAll();
+        }
+    }
 
-        try {
-            TOUSystemMessage fin = sendSYNorFIN(FIN);
-            if (fin == null) return;
-            TOUSystemMessage finack = receiveSYNACKorFINACK(fin);
-            if (finack == null) return;
-            TOUSystemMessage ack = sendACK(finack);
-        } catch (IOException e) {
-            LOGGER.catching(e);
-            e.printStackTrace();
+    private void abortiveClose() {
+        if (state != CLOSED && state != LISTEN) {
+            send(TOUFactory.createRST(localAddress, localport, address, port, sendSequenceNumber()));
+        }
+        for (TOUSocketOutputStream output : outputs) {
+            output.abort();
         }
+        release();
+    }
 
-        LOGGER.traceExit();
+    private void closeTimedOut() {
+        synchronized (stateMonitor) {
+            if (closed) return;
+            LOGGER.debug("tear down timed out in state {}", state);
+            release();
+        }
     }
 
-    private void passiveClose(TOUSystemMessage fin) {
-        LOGGER.traceEntry("{}", fin);
+    /**
+     * Frees everything the connection holds once it is closed by the application and no more
+     * control messages are expected. A connection in TIME_WAIT leaves only an entry in the
+     * communicator's TIME_WAIT table behind. Called under stateMonitor.
+     */
+    private void release() {
+        if (closed) return;
+
+        closed = true;
+        finPending = false;
+        if (closeTimeout != null) {
+            closeTimeout.cancel(false);
+        }
+        if (handshakeCheck != null) {
+            handshakeCheck.cancel(false);
+        }
+        cancelIdleCheck();
+        if (!isAborted()) {
+            saveMetrics();
+        }
+        cancelRetransmissions();
+        if (handshakes != null) {
+            dropHandshakes();
+        }
+
+        if (state == TIME_WAIT && isAcceptedImpl) {
+            communicator.timeWait(remoteSocketAddress());
+        }
+        state = CLOSED;
+        stateMonitor.notifyAll();
 
-        if (closePending) return;
+        finishStreams();
+        releaseReceiveMemory();
+        if (address != null) {
+            CONNECTIONS.remove(connectionKey(), this);
+        }
 
-        try {
-            TOUSystemMessage finack = sendSYNACKorFINACK(fin);
-            TOUSystemMessage ack = receiveACK(fin, finack);
-            communicator.removeByReference(finack);
-            disconnect();
-            close();
-        } catch (IOException e) {
-            LOGGER.catching(e);
-            e.printStackTrace();
+        if (isAcceptedImpl) {
+            implMap.remove(remoteSocketAddress(), this);
+            return;
         }
 
-        LOGGER.traceExit();
+        if (udpSocket != null) {
+            LOGGER.debug("close UDP socket: {}", ()->TOULog4JUtils.toString(udpSocket));
+            udpSocket.close();
+        }
+
+        if (communicator != null) {
+            communicator.stop();
+        }
     }
 
-    private void blockUntilContainersEmpty()
-            throws InterruptedException {
-        LOGGER.debug("waiting for segment map");
-        if (!dataSegmentMap.isEmpty()) synchronized (dataSegmentMonitor) {
-            while (!dataSegmentMap.isEmpty()) {
-                dataSegmentMap.wait();
+    /**
+     * The listener is closed: the handshakes going on are dropped, and the peers of the connections
+     * nobody has accepted are reset. Called under stateMonitor.
+     */
+    private void dropHandshakes() {
+        for (Handshake handshake : handshakes.values()) {
+            if (handshake.expiry != null) {
+                handshake.expiry.cancel(false);
+            }
+            if (handshake.synack == null) continue;
+            handshake.synack.cancel();
+            if (handshake.established) {
+                send(TOUFactory.createRST(localAddress, localport, handshake.remote.getAddress(),
+                        handshake.remote.getPort(), handshake.synack.sequenceNumber() + 1));
             }
         }
-        LOGGER.debug("segment map is empty");
+        handshakes.clear();
+        backlog.clear();
+    }
+
+    int sendSequenceNumber() {
+        return sendSequenceNumber;
+    }
+
+    /**
+     * Called by the Sender thread for every new data segment.
+     */
+    void sendSequenceNumber(int sendSequenceNumber) {
+        this.sendSequenceNumber = sendSequenceNumber;
     }
 
     @Override
@@ -387,6 +1051,7 @@ class TOUSocketImpl extends SocketImpl {
 
         if (outputStream == null) {
             outputStream = new TOUSocketOutputStream(this);
+            updateOutputs();
         }
         return LOGGER.traceExit(outputStream);
     }
@@ -405,164 +1070,907 @@ class TOUSocketImpl extends SocketImpl {
         return LOGGER.traceExit(available);
     }
 
-    void processFIN(TOUSystemMessage fin) {
-        LOGGER.traceEntry("{}", fin);
-        if (isConnected()) {
-            passiveClose(fin);
-        }
+    /**
+     * Called by the communicator's Receiver thread for every SYN, SYNACK, FIN, FINACK, RST
+     * and pure ACK addressed to this connection.
+     * <p>
+     * Messages are queued in the connection's mailbox and then drained in arrival order,
+     * so none of them can be overwritten by another one arriving while it is pending.
+     */
+    void dispatch(TOUSystemMessage message) {
+        LOGGER.traceEntry("{}", message);
+
+        lastReceived = System.currentTimeMillis();
+        mailbox.offer(message);
+        drainMailbox();
+
         LOGGER.traceExit();
     }
 
-    private TOUSystemMessage sendSYNorFIN(TCPSegmentType type)
-            throws IOException {
-        LOGGER.traceEntry();
-        try {
-            TOUSystemMessage synOrFin = TOUFactory.createSYNorFIN(type, localAddress, localport, address, port);
-            communicator.send(synOrFin);
-            return LOGGER.traceExit(synOrFin);
-        } catch (InterruptedException e) {
-            throw LOGGER.throwing(new IOException(e));
-        }
+    /**
+     * Same as {@link #dispatch(TOUSystemMessage)} for the messages of a batch, all handled under one lock.
+     */
+    void dispatch(List<TOUSystemMessage> messages) {
+        LOGGER.traceEntry("{} messages", messages.size());
+
+        lastReceived = System.currentTimeMillis();
+        mailbox.addAll(messages);
+        drainMailbox();
+
+        LOGGER.traceExit();
     }
 
-    private TOUSystemMessage receiveSYN(InetAddress localAddress, int localPort)
-            throws IOException {
-        LOGGER.traceEntry("local address: {} local port: {}", localAddress, localPort);
+    private void drainMailbox() {
+        synchronized (stateMonitor) {
+            TOUSystemMessage m;
+            while ((m = mailbox.poll()) != null) {
+                handle(m);
+            }
+            if (closePending && state.isTerminal()) {
+                release();
+            }
+            stateMonitor.notifyAll();
+        }
+    }
 
-        try {
-            TOUSystemMessage syn = receiveSystemMessage(s ->
-                s != null &&
-                s.type() == SYN &&
-                s.destinationAddress().equals(localAddress) &&
-                s.destinationPort() == localPort);
-            return LOGGER.traceExit(syn);
-        } catch (InterruptedException e) {
-            throw LOGGER.throwing(new IOException(e));
+    private void handle(TOUSystemMessage message) {
+        TOUConnectionState previous = state;
+        switch (message.type()) {
+            case SYN:
+                handleSYN(message);
+                break;
+            case SYNACK:
+                handleSYNACK(message);
+                break;
+            case ACK:
+                handleACK(message);
+                break;
+            case FIN:
+                handleFIN(message);
+                break;
+            case FINACK:
+                handleFINACK(message);
+                break;
+            case RST:
+                handleRST(message);
+                break;
+            default:
+                LOGGER.warn("unexpected system message {}", message);
+        }
+        if (previous != state) {
+            LOGGER.debug("{} -> {} on {}", previous, state, message);
         }
     }
 
-    private TOUSystemMessage sendSYNACKorFINACK(TOUSystemMessage synOrFin)
-            throws IOException {
-        LOGGER.traceEntry(()->synOrFin);
-        try {
-            TOUSystemMessage synackOrFinack = factory.createSYNACKorFINACK(synOrFin);
-            communicator.send(synackOrFinack);
-            return LOGGER.traceExit(synackOrFinack);
-        } catch (InterruptedException e) {
-            throw LOGGER.throwing(new IOException(e));
+    /**
+     * The listener answers a SYN at once, so that a peer which never finishes its handshake holds up
+     * no other one. A fast open SYN with a valid cookie goes to accept() as it is, which answers it
+     * once the data can be delivered.
+     */
+    private void handleSYN(TOUSystemMessage syn) {
+        if (state != LISTEN) return;
+
+        // the SYNACK is retransmitted as long as the handshake goes on
+        if (handshakes.containsKey(new InetSocketAddress(syn.sourceAddress(), syn.sourcePort()))) return;
+        if (isKnownRemote(syn)) return;
+        if (handshakes.size() >= backlogCapacity) {
+            LOGGER.debug("backlog is full, drop {}", syn);
+            return;
+        }
+
+        boolean fastOpened = fastOpen && syn.tcpSegment.isFASTOPEN() && TOUFastOpen.hasData(syn);
+        Handshake handshake = new Handshake(syn, fastOpened ? null : answer(syn));
+        handshakes.put(handshake.remote, handshake);
+        if (fastOpened) {
+            handshake.established = true;
+            backlog.offer(handshake);
+        } else {
+            send(handshake.synack);
+            handshake.expiry = TOUTimer.schedule(() -> handshakeExpired(handshake), TOUConstants.HANDSHAKE_TIMEOUT);
         }
     }
 
-    private TOUSystemMessage receiveSYNACKorFINACK(TOUSystemMessage synOrFin)
-            throws IOException {
-        LOGGER.traceEntry("{}", synOrFin);
+    /**
+     * @return the SYNACK of the listener, with a cookie for a fast open SYN which has none valid
+     */
+    private TOUSystemMessage answer(TOUSystemMessage syn) {
+        TOUSystemMessage synack = factory.createSYNACKorFINACK(syn);
+        if (fastOpen && syn.tcpSegment.isFASTOPEN() && !TOUFastOpen.hasCookie(syn)) {
+            LOGGER.debug("give {}:{} a fast open cookie", syn.sourceAddress(), syn.sourcePort());
+            synack = TOUFactory.withFastOpen(synack, TOUFastOpen.cookie(syn.sourceAddress()), new byte[0]);
+        }
+        return synack;
+    }
 
-        try {
-            TOUSystemMessage synackOrFinack = receiveSystemMessage(s ->
-                s != null &&
-                s.type() == (synOrFin.type() == SYN ? SYNACK : FINACK) &&
-                Objects.equals(s.destinationAddress, synOrFin.sourceAddress) &&
-                s.destinationPort() == synOrFin.sourcePort() &&
-                Objects.equals(s.sourceAddress, synOrFin.destinationAddress) &&
-                s.sourcePort() == synOrFin.destinationPort() &&
-                s.ackNumber() == synOrFin.sequenceNumber() + 1
-            );
-            return LOGGER.traceExit(synackOrFinack);
-        } catch (InterruptedException e) {
-            throw LOGGER.throwing(new IOException(e));
-        }
-    }
-
-    private TOUSystemMessage sendACK(TOUSystemMessage synackOrFinack)
-            throws IOException {
-        LOGGER.traceEntry();
+    private void handshakeExpired(Handshake handshake) {
+        synchronized (stateMonitor) {
+            if (handshake.established || !handshakes.remove(handshake.remote, handshake)) return;
+            LOGGER.debug("handshake with {} timed out", handshake.remote);
+            handshake.synack.cancel();
+        }
+    }
 
-        TOUSystemMessage ack = TOUFactory.createACK(synackOrFinack);
-        try {
-            if (closePending) {
-                communicator.send(ack);
+    /**
+     * Called by the Receiver thread for a segment of a peer which has no connection: the ACK which finishes
+     * its handshake with the listener, or what it sends before the application accepts the connection.
+     *
+     * @return false if the listener has no handshake with the peer
+     */
+    boolean handshakeSegment(TOUSegment segment, TCPSegmentType type) {
+        InetSocketAddress remote = new InetSocketAddress(segment.sourceAddress, segment.sourcePort());
+        synchronized (stateMonitor) {
+            Handshake handshake = handshakes == null ? null : handshakes.get(remote);
+            if (handshake == null) return false;
+
+            if (type == RST) {
+                LOGGER.debug("{} resets its handshake", remote);
+                handshakes.remove(remote);
+                backlog.remove(handshake);
+                if (handshake.synack != null) {
+                    handshake.synack.cancel();
+                }
+                if (handshake.expiry != null) {
+                    handshake.expiry.cancel(false);
+                }
+                return true;
+            }
+            if (!handshake.established) {
+                if (!segment.tcpSegment.isACK() || segment.ackNumber() != handshake.synack.sequenceNumber() + 1) {
+                    LOGGER.trace("drop {} before the handshake is over", segment);
+                    return true;
+                }
+                LOGGER.debug("handshake with {} is over", remote);
+                handshake.established = true;
+                handshake.synack.cancel();
+                handshake.expiry.cancel(false);
+                backlog.offer(handshake);
+                stateMonitor.notifyAll();
+                if (type == ACK && segment.tcpSegment.dataSize() == 0) return true;
+            }
+            // not acknowledged, the peer sends it again if there is no room
+            if (handshake.held.size() < TOUConstants.INITIAL_RECEIVE_WINDOW) {
+                handshake.held.add(segment);
             } else {
-                pendingAcks.put(ack);
+                LOGGER.debug("drop {} of a connection which is not accepted yet", segment);
             }
-            return LOGGER.traceExit(ack);
-        } catch (InterruptedException e) {
-            LOGGER.catching(e);
-            throw new IOException(e);
+            return true;
         }
     }
 
-    private TOUSystemMessage receiveACK(TOUSystemMessage synOrFin, TOUSystemMessage synackOrFinack)
-            throws IOException {
-        LOGGER.traceEntry("{} {}", synOrFin, synackOrFinack);
+    /**
+     * A retransmitted SYN may reach the listener after the connection is accepted.
+     * A SYN from a peer in TIME_WAIT is let in: the peer's port has been reused for a new connection.
+     */
+    private boolean isKnownRemote(TOUSystemMessage syn) {
+        return implMap.containsKey(new InetSocketAddress(syn.sourceAddress(), syn.sourcePort()));
+    }
+
+    private void handleSYNACK(TOUSystemMessage synack) {
+        if (state == SYN_SENT) {
+            // the listener acknowledges the data of our SYN too unless it turns fast open down
+            int accepted = synack.ackNumber() - (syn.sequenceNumber() + 1);
+            if (accepted != 0 && accepted != fastOpenSize) return;
+            syn.cancel();
+            this.synack = synack;
+            if (synack.tcpSegment.isFASTOPEN() && synack.tcpSegment.dataSize() == TOUFastOpen.COOKIE_SIZE) {
+                METRICS.updateFastOpenCookie(address, synack.tcpSegment.data());
+            }
+            if (outputStream != null) {
+                // before the Sender may cut segments: the data the SYN carried is not sent again
+                outputStream.skip(synack.ackNumber());
+            }
+            initialSequenceNumber = synack.ackNumber();
+            sendSequenceNumber = initialSequenceNumber;
+            peerWindow = synack.window();
+            peerWindowAck = initialSequenceNumber;
+            initSendQueue();
+            initReceiveQueues(synack.sequenceNumber() + 1);
+            state = ESTABLISHED;
+            send(TOUFactory.createACK(synack));
+            startIdleCheck();
+            if (outputStream != null && outputStream.available() > 0) {
+                // what the SYN did not carry goes as usual now
+                outputReady();
+            }
+        } else if (state == ESTABLISHED && synack.isEqualTo(this.synack)) {
+            // our ACK was lost
+            send(TOUFactory.createACK(synack));
+        }
+    }
+
+    private void handleACK(TOUSystemMessage ack) {
+        switch (state) {
+            case SYN_RCVD:
+                // after fast open the ACK may acknowledge our data as well
+                if (ack.ackNumber() - (synack.sequenceNumber() + 1) >= 0) {
+                    establish();
+                }
+                break;
+            case FIN_WAIT_1:
+                if (acknowledgesFIN(ack)) {
+                    fin.cancel();
+                    state = FIN_WAIT_2;
+                }
+                break;
+            case CLOSING:
+                if (acknowledgesFIN(ack)) {
+                    fin.cancel();
+                    state = TIME_WAIT;
+                }
+                break;
+            case LAST_ACK:
+                if (acknowledgesFIN(ack)) {
+                    fin.cancel();
+                    state = CLOSED;
+                }
+                break;
+            default:
+                // acknowledges data
+        }
+    }
+
+    private void handleFIN(TOUSystemMessage fin) {
+        if (state.isRemoteClosed()) {
+            // our ACK was lost
+            send(TOUFactory.createACK(fin));
+            return;
+        }
+
+        // FIN takes the sequence number following the peer's last data segment,
+        // wait for the retransmission if some data is still missing
+        if (fin.sequenceNumber() != expectedSequenceNumber) {
+            LOGGER.debug("{} is ahead of seq: {}", fin, expectedSequenceNumber);
+            return;
+        }
+
+        switch (state) {
+            case SYN_RCVD:
+            case ESTABLISHED:
+                send(TOUFactory.createACK(fin));
+                state = CLOSE_WAIT;
+                break;
+            case FIN_WAIT_1:
+                TOUSystemMessage finack = factory.createSYNACKorFINACK(fin);
+                finack.sequenceNumber(this.fin.sequenceNumber());
+                finack.setTimeout(0);
+                send(finack);
+                state = CLOSING;
+                break;
+            case FIN_WAIT_2:
+                send(TOUFactory.createACK(fin));
+                state = TIME_WAIT;
+                break;
+            default:
+                return;
+        }
+        finishStreams();
+    }
+
+    private void handleFINACK(TOUSystemMessage finack) {
+        if (state == TIME_WAIT) {
+            send(TOUFactory.createACK(finack));
+            return;
+        }
+        if ((state != FIN_WAIT_1 && state != CLOSING) || !acknowledgesFIN(finack)) return;
+        if (finack.sequenceNumber() != expectedSequenceNumber) return;
+
+        fin.cancel();
+        send(TOUFactory.createACK(finack));
+        state = TIME_WAIT;
+        finishStreams();
+    }
+
+    private void handleRST(TOUSystemMessage rst) {
+        if (state == CLOSED || state == LISTEN) return;
+        if (state == SYN_SENT) {
+            // a reset answering our SYN echoes its sequence number
+            if (rst.ackNumber() != syn.sequenceNumber()) return;
+        } else if (rst.sequenceNumber() != expectedSequenceNumber) {
+            // like RFC 5961: a late reset of an earlier connection or a blind one is dropped, while one
+            // in the window gets an ACK, which a peer that is really gone answers with an exact reset
+            int offset = rst.sequenceNumber() - expectedSequenceNumber;
+            if (offset > 0 && offset < Math.max(1, receiveWindow()) * TOUConstants.MAX_DATA_SIZE) {
+                LOGGER.debug("challenge {}", rst);
+                send(TOUFactory.createACK(expectedSequenceNumber, localAddress, localport, address, port));
+            }
+            return;
+        }
+
+        abort("Connection reset");
+    }
+
+    /**
+     * Drops the connection at once: nothing is retransmitted to the peer any more, blocked
+     * readers and writers fail with the given reason and the receive queues are released.
+     * Called under stateMonitor.
+     */
+    private void abort(String reason) {
+        LOGGER.debug("connection to {}:{} is aborted: {}", address, port, reason);
+
+        abortReason = reason;
+        state = CLOSED;
+        cancelIdleCheck();
+        cancelRetransmissions();
+        implMap.remove(remoteSocketAddress(), this);
+        CONNECTIONS.remove(connectionKey(), this);
+        for (TOUStream stream : streams.values()) {
+            stream.abort();
+        }
+        // a timer thread may abort while the Receiver is in the middle of a batch for the connection
+        communicator.onReceiver(this::dropReceived);
+        if (outputStream != null) {
+            outputStream.abort();
+        }
+        // wakes up acceptStream
+        stateMonitor.notifyAll();
+    }
+
+    /**
+     * The reader fails from now on, the data it did not take is gone. Called by the Receiver thread.
+     */
+    private void dropReceived() {
+        if (outOfOrderSegments != null) {
+            outOfOrderSegments.clear();
+        }
+        for (TOUStream stream : streams.values()) {
+            stream.forget();
+        }
+        releaseReceiveMemory();
+    }
+
+    /**
+     * The peer sends nothing more: every reader gets the end of its stream once it has read the rest.
+     */
+    private void finishStreams() {
+        for (TOUStream stream : streams.values()) {
+            stream.finish();
+        }
+    }
+
+    /**
+     * Nothing is sent to the peer once the connection is gone.
+     */
+    private void cancelRetransmissions() {
+        for (TOUSegment segment : new TOUSegment[] {syn, synack, fin}) {
+            if (segment != null) {
+                segment.cancel();
+            }
+        }
+        if (retransmissionQueue != null) {
+            retransmissionQueue.clear();
+        }
+    }
 
+    private boolean acknowledgesFIN(TOUSystemMessage ack) {
+        return fin != null && ack.ackNumber() == fin.sequenceNumber() + 1;
+    }
+
+    private void establish() {
+        synack.cancel();
+        state = ESTABLISHED;
+        startIdleCheck();
+    }
+
+    /**
+     * Called by accept() for a SYN with a valid fast open cookie and data, see {@link TOUFastOpen}.
+     * The data after the cookie is delivered at once and acknowledged by the SYNACK, unless there
+     * is no room for it: then it is sent again as usual.
+     *
+     * @return true if the data of the SYN is taken
+     */
+    private boolean fastOpen(TOUSystemMessage syn) {
+        byte[] payload = syn.tcpSegment.data();
+        int size = payload.length - TOUFastOpen.COOKIE_SIZE;
+        byte[] data = Arrays.copyOfRange(payload, TOUFastOpen.COOKIE_SIZE, payload.length);
+        if (!mainStream.receive(expectedSequenceNumber, data, false, false)) return false;
+        expectedSequenceNumber += size;
+        mainStream.inOrder().signal();
+        deliveredStreams.clear();
+        synack.ackNumber(expectedSequenceNumber);
+        LOGGER.debug("fast open with {} bytes from {}:{}", size, address, port);
+        return true;
+    }
+
+    /**
+     * Sends the SYN of a fast open connect with the data written so far, unless it is gone already.
+     */
+    private void sendDeferredSYN() {
+        synchronized (stateMonitor) {
+            if (!synDeferred) return;
+            synDeferred = false;
+            if (state != SYN_SENT) return;
+
+            byte[] data = outputStream == null ? new byte[0] : outputStream.peek(mss - TOUFastOpen.COOKIE_SIZE);
+            fastOpenSize = data.length;
+            syn = TOUFactory.withFastOpen(syn, metrics.fastOpenCookie, data);
+            send(syn);
+            handshakeCheck = TOUTimer.schedule(this::handshakeTimedOut, handshakeTimeout);
+        }
+    }
+
+    /**
+     * Called by the reader of a fast open connection whose SYN has not been answered yet.
+     * With nothing written so far the SYN goes without data.
+     *
+     * @return false if the handshake failed, the connection is aborted then
+     */
+    private boolean awaitHandshake() {
+        sendDeferredSYN();
+        if (!awaitState(st -> st != SYN_SENT, handshakeTimeout)) {
+            handshakeTimedOut();
+        }
+        return mainStream != null && !isAborted();
+    }
+
+    /**
+     * A fast open connection is in the application's hands before the handshake is over,
+     * it is dropped if the peer does not finish it in time.
+     */
+    private void handshakeTimedOut() {
+        synchronized (stateMonitor) {
+            if (state != SYN_SENT && state != SYN_RCVD) return;
+            abort("Connection timed out");
+            stateMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Starts watching the peer's silence if SO_KEEPALIVE or the idle timeout is on.
+     * Called under stateMonitor.
+     */
+    private void startIdleCheck() {
+        if (idleCheck != null || !state.isSynchronized()) return;
+        if (!keepAlive && TOUConstants.IDLE_TIMEOUT <= 0) return;
+
+        lastReceived = System.currentTimeMillis();
+        idleCheck = TOUTimer.schedule(this::checkIdle, 0);
+    }
+
+    private void cancelIdleCheck() {
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+    }
+
+    /**
+     * Runs on the timer thread. Probes a peer which has been silent for KEEPALIVE_TIME and
+     * reaps the connection if it does not answer KEEPALIVE_PROBES probes or stays silent
+     * for IDLE_TIMEOUT.
+     */
+    private void checkIdle() {
+        synchronized (stateMonitor) {
+            idleCheck = null;
+            int idleTimeout = TOUConstants.IDLE_TIMEOUT;
+            if (closed || !state.isSynchronized() || (!keepAlive && idleTimeout <= 0)) return;
+
+            long idle = System.currentTimeMillis() - lastReceived;
+            if (idleTimeout > 0 && idle >= idleTimeout) {
+                reap();
+                return;
+            }
+
+            long delay = idleTimeout > 0 ? idleTimeout - idle : Long.MAX_VALUE;
+            if (keepAlive) {
+                if (idle < TOUConstants.KEEPALIVE_TIME) {
+                    // the peer has answered
+                    keepAliveProbes = 0;
+                    delay = Math.min(delay, TOUConstants.KEEPALIVE_TIME - idle);
+                } else if (keepAliveProbes < TOUConstants.KEEPALIVE_PROBES) {
+                    ++keepAliveProbes;
+                    sendKeepAliveProbe();
+                    delay = Math.min(delay, TOUConstants.KEEPALIVE_INTERVAL);
+                } else {
+                    reap();
+                    return;
+                }
+            }
+
+            idleCheck = TOUTimer.schedule(this::checkIdle, delay);
+        }
+    }
+
+    /**
+     * A segment without data which repeats the last sequence number the peer has seen,
+     * the peer answers it with an ACK at once.
+     */
+    private void sendKeepAliveProbe() {
+        TOUSegment probe = factory.createTOUSegment(new byte[0], sendSequenceNumber() - 1);
+        probe.setTimeout(0);
         try {
-            TOUSystemMessage ack = receiveSystemMessage(s ->
-                s != null &&
-                s.type() == ACK &&
-                s.destinationPort() == synOrFin.destinationPort() &&
-                s.sourcePort() == synOrFin.sourcePort() &&
-                Objects.equals(s.sourceAddress, synOrFin.sourceAddress) &&
-                Objects.equals(s.destinationAddress, synOrFin.destinationAddress) &&
-                s.ackNumber() == synackOrFinack.sequenceNumber() + 1 &&
-                s.sequenceNumber() == synackOrFinack.ackNumber()
-            );
-            return LOGGER.traceExit(ack);
-        } catch (InterruptedException e) {
-            throw LOGGER.throwing(new IOException(e));
-        }
-    }
-
-    void processSegment(TOUSegment segment) {
-        LOGGER.traceEntry("{}", segment);
+            communicator.send(probe);
+        } catch (IOException | InterruptedException e) {
+            LOGGER.catching(e);
+        }
+    }
+
+    private void reap() {
+        LOGGER.debug("peer {}:{} is dead, reap the connection", address, port);
+
+        // the peer may only be silent, let it know
+        send(TOUFactory.createRST(localAddress, localport, address, port, sendSequenceNumber()));
+        abort("Connection timed out");
+        if (closePending) {
+            release();
+        }
+        stateMonitor.notifyAll();
+    }
+
+    private void send(TOUSystemMessage systemMessage) {
+        advertiseWindow(systemMessage);
         try {
-            pendingAcks.put(TOUFactory.createACK(segment));
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            communicator.send(systemMessage);
+        } catch (IOException | InterruptedException e) {
+            LOGGER.catching(e);
         }
-        putDataSegmentIntoMap(segment.tcpSegment.data(), segment.sequenceNumber());
-        LOGGER.traceExit();
     }
 
-    private void putDataSegmentIntoMap(byte[] dataSegment, short sequenceNumber) {
-        LOGGER.traceEntry("seq: {} data: \"{}\" - {} bytes", ()->sequenceNumber, ()->new String(dataSegment), ()->dataSegment.length);
-        synchronized (dataSegmentMonitor) {
-            dataSegmentMap.put(sequenceNumber, dataSegment);
-            dataSegmentMonitor.notifyAll();
+    private boolean awaitState(Predicate<TOUConnectionState> expected, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (stateMonitor) {
+            while (!expected.test(state)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                try {
+                    stateMonitor.wait(left);
+                } catch (InterruptedException e) {
+                    LOGGER.catching(e);
+                    // the caller sees a timeout, the thread's owner still sees the interrupt
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
         }
-        LOGGER.traceExit();
+        return true;
     }
 
-    void setSystemMessage(TOUSystemMessage systemMessage) {
-        LOGGER.traceEntry("{}", systemMessage);
+    /**
+     * Called by the communicator's Receiver thread for the data segments of this connection
+     * which came in one batch.
+     * <p>
+     * Out-of-order segments wait in maps private to the Receiver thread, in-order ones are
+     * handed off to the readers through lock-free rings, so a reader is only woken
+     * when contiguous data appears on its stream, once per batch. The whole batch is answered
+     * with one cumulative ACK, and a SACK for each segment still waiting behind a gap.
+     * <p>
+     * The sequence numbers order the segments of all the streams together, for the ACKs, while
+     * every stream orders its data by its own offsets: a segment behind a gap in the sequence
+     * numbers is delivered at once if the gap is on another stream.
+     */
+    void processSegments(List<TOUSegment> segments) {
+        LOGGER.traceEntry("{} segments", segments.size());
+
+        if (isAborted()) {
+            // the batch was split before the connection was dropped
+            LOGGER.traceExit();
+            return;
+        }
+        lastReceived = System.currentTimeMillis();
+
+        if (mainStream == null) {
+            // the data a fast open listener sends right away overtook its SYNACK, it comes again
+            LOGGER.debug("drop {} segments before the SYNACK", segments.size());
+            return;
+        }
+
+        if (state == SYN_RCVD) {
+            // the peer could only send data after it got our SYNACK
+            synchronized (stateMonitor) {
+                if (state == SYN_RCVD) {
+                    establish();
+                    stateMonitor.notifyAll();
+                }
+            }
+        }
 
-        synchronized (systemMessageMonitor) {
-            lastSystemMessage = systemMessage;
-            systemMessageMonitor.notifyAll();
+        List<TOUSegment> outOfOrder = null;
+        for (TOUSegment segment : segments) {
+            if (!processSegment(segment)) {
+                if (outOfOrder == null) outOfOrder = new ArrayList<>();
+                outOfOrder.add(segment);
+            }
+            if (isAborted()) {
+                // the segment broke the rules, the peer has got our RST
+                LOGGER.traceExit();
+                return;
+            }
+        }
+
+        for (TOUStream stream : deliveredStreams) {
+            stream.inOrder().signal();
+        }
+        deliveredStreams.clear();
+
+        boolean sacked = false;
+        if (outOfOrder != null) {
+            for (TOUSegment segment : outOfOrder) {
+                if (segment.sequenceNumber() - expectedSequenceNumber > 0) {
+                    send(TOUFactory.createSACK(segment, expectedSequenceNumber));
+                    sacked = true;
+                }
+            }
+        }
+        if (!sacked) {
+            send(TOUFactory.createACK(segments.get(segments.size() - 1), expectedSequenceNumber));
         }
 
         LOGGER.traceExit();
     }
 
-    private TOUSystemMessage receiveSystemMessage(Predicate<TOUSystemMessage> isExpected)
-            throws InterruptedException {
+    /**
+     * Puts one segment of a batch in its place without waking the reader.
+     *
+     * @return false if the segment waits behind a gap
+     */
+    private boolean processSegment(TOUSegment segment) {
+        int size = sequenceSize(segment.tcpSegment);
+        if (size == 0) {
+            LOGGER.trace("keepalive probe, seq: {}", segment.sequenceNumber());
+            return true;
+        }
+
+        int sequenceNumber = segment.sequenceNumber();
+        int offset = sequenceNumber - expectedSequenceNumber;
+
+        if ((long) offset + size <= 0) {
+            // our ACK was lost
+            LOGGER.trace("duplicate seq: {}", sequenceNumber);
+            return true;
+        }
+        if (offset > 0) {
+            // a repacketized retransmission may start where a shorter segment did
+            Integer held = outOfOrderSegments.get(sequenceNumber);
+            if (held != null && held >= size) return false;
+        }
+
+        if (!receive(segment)) return true;
+
+        if (offset > 0) {
+            outOfOrderSegments.put(sequenceNumber, size);
+            return false;
+        }
+        // a repacketized retransmission may start with bytes we already have
+        expectedSequenceNumber = sequenceNumber + size;
+        Map.Entry<Integer, Integer> next;
+        while ((next = outOfOrderSegments.firstEntry()) != null && next.getKey() - expectedSequenceNumber <= 0) {
+            outOfOrderSegments.pollFirstEntry();
+            int end = next.getKey() + next.getValue();
+            if (end - expectedSequenceNumber > 0) {
+                expectedSequenceNumber = end;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the sequence numbers the segment takes, a skip frame takes those of the segment it replaces
+     */
+    private static int sequenceSize(TCPSegment tcpSegment) {
+        int size = tcpSegment.dataSize();
+        if (!tcpSegment.isSTREAM() || size < TOUStream.SKIP_SIZE) return size;
+        byte[] bytes = tcpSegment.bytes();
+        int frame = tcpSegment.dataOffset();
+        return TOUStream.frameAbandon(bytes, frame) ? TOUStream.skipLength(bytes, frame) : size;
+    }
+
+    /**
+     * Hands the data of a segment to its stream.
+     *
+     * @return false if the stream has no room for it, the segment is not acknowledged then
+     */
+    private boolean receive(TOUSegment segment) {
+        TCPSegment tcpSegment = segment.tcpSegment;
+        if (!tcpSegment.isSTREAM()) {
+            // the sequence numbers are the offsets of the main stream while only it is used
+            return mainStream.receive(segment.sequenceNumber(), tcpSegment.data(), false, false);
+        }
+
+        byte[] bytes = tcpSegment.bytes();
+        int frame = tcpSegment.dataOffset();
+        if (tcpSegment.dataSize() < TOUStream.HEADER_SIZE) {
+            LOGGER.debug("drop malformed stream frame seq: {}", segment.sequenceNumber());
+            return true;
+        }
+        int id = TOUStream.frameId(bytes, frame);
+        int opening = peerStreamsOpening(id);
+        if (opening > TOUConstants.MAX_STREAMS) {
+            // no stream of the peer being done makes room for these
+            refuseStreams(id);
+            return true;
+        }
+        if (opening > 0 && openPeerStreams() + opening > TOUConstants.MAX_STREAMS) {
+            // the peer has not seen its streams done yet, the frame comes again
+            LOGGER.debug("no room for stream {} of the peer", id);
+            return false;
+        }
+        TOUStream stream = stream(id);
+        if (stream == null) {
+            // the stream is closed on our side, the peer only needs the ACK
+            return true;
+        }
+        if (TOUStream.frameAbandon(bytes, frame)) {
+            return tcpSegment.dataSize() < TOUStream.SKIP_SIZE ||
+                    stream.skip(TOUStream.skipStart(bytes, frame), TOUStream.frameOffset(bytes, frame),
+                            TOUStream.frameFin(bytes, frame));
+        }
+        return stream.receive(TOUStream.frameOffset(bytes, frame),
+                Arrays.copyOfRange(bytes, frame + TOUStream.HEADER_SIZE, bytes.length),
+                TOUStream.frameFin(bytes, frame), TOUStream.frameEom(bytes, frame));
+    }
+
+    /**
+     * Called by the Receiver thread for a frame. The first frame of a stream the peer opens creates
+     * the stream, and the streams with lower ids the peer has opened too: their first frames may
+     * come later, the streams of the peer go one after another like in QUIC.
+     *
+     * @return null if the stream is done or the id is not one the peer may use
+     */
+    private TOUStream stream(int id) {
+        TOUStream stream = streams.get(id);
+        if (stream != null || id == 0 || (id % 2 == 1) != isAcceptedImpl || id <= highestPeerStreamId) {
+            return stream;
+        }
+
+        int first = highestPeerStreamId == 0 ? (isAcceptedImpl ? 1 : 2) : highestPeerStreamId + 2;
+        highestPeerStreamId = id;
+        synchronized (stateMonitor) {
+            for (int opened = first; opened <= id; opened += 2) {
+                stream = new TOUStream(this, opened, 0, maxReceiveWindow());
+                streams.put(opened, stream);
+                incomingStreams.offer(stream);
+                LOGGER.debug("peer opens stream {}", opened);
+            }
+            stateMonitor.notifyAll();
+        }
+        updateOutputs();
+        return stream;
+    }
+
+    /**
+     * The peer may have at most {@link TOUConstants#MAX_STREAMS} streams open at once, like with
+     * the MAX_STREAMS of QUIC, but the limit is the same on both sides and never sent.
+     *
+     * @return the streams a frame with the id opens, 0 if it is not a new stream of the peer
+     */
+    int peerStreamsOpening(int id) {
+        if (id == 0 || (id % 2 == 1) != isAcceptedImpl || id <= highestPeerStreamId || streams.containsKey(id)) {
+            return 0;
+        }
+        int first = highestPeerStreamId == 0 ? (isAcceptedImpl ? 1 : 2) : highestPeerStreamId + 2;
+        return (id - first) / 2 + 1;
+    }
+
+    /**
+     * @return the streams the peer has opened which are not done yet
+     */
+    int openPeerStreams() {
+        int open = 0;
+        for (int id : streams.keySet()) {
+            if (id != 0 && (id % 2 == 1) == isAcceptedImpl) open++;
+        }
+        return open;
+    }
+
+    /**
+     * Resets the connection: the peer opens more streams at once than it ever may.
+     */
+    private void refuseStreams(int id) {
+        synchronized (stateMonitor) {
+            if (isAborted()) return;
+            LOGGER.debug("peer opens stream {}, more than {} at once", id, TOUConstants.MAX_STREAMS);
+            send(TOUFactory.createRST(localAddress, localport, address, port, sendSequenceNumber()));
+            abort("Too many streams");
+        }
+    }
+
+    /**
+     * Called by a stream for every piece of data it delivers, on the Receiver thread.
+     */
+    void delivered(TOUStream stream) {
+        if (!deliveredStreams.contains(stream)) {
+            deliveredStreams.add(stream);
+        }
+        measureReceiveRtt();
+    }
+
+    /**
+     * Forgets a stream once nothing more goes either way on it.
+     */
+    void retireIfDone(TOUStream stream) {
+        if (!stream.isDone()) {
+            if (stream.isOutputFinished()) {
+                updateOutputs();
+            }
+            return;
+        }
+        if (streams.remove(stream.id(), stream)) {
+            LOGGER.debug("stream {} is done", stream.id());
+            updateOutputs();
+        }
+    }
+
+    /**
+     * Opens a stream of our own, see {@link TOUStream#open}.
+     */
+    TOUStream openStream()
+            throws IOException {
         LOGGER.traceEntry();
 
-        if (closed) return null;
+        if (state == SYN_SENT) {
+            // a fast open connection
+            awaitHandshake();
+        }
+        synchronized (stateMonitor) {
+            if (isAborted()) {
+                throw LOGGER.throwing(new SocketException(abortReason));
+            }
+            if (isClosedOrPending()) {
+                throw LOGGER.throwing(new SocketException("Socket closed"));
+            }
+            if (mainStream == null || state == CLOSED) {
+                throw LOGGER.throwing(new SocketException("Socket is not connected"));
+            }
+            if (nextStreamId == 0) {
+                nextStreamId = isAcceptedImpl ? 2 : 1;
+            }
+            if (nextStreamId > TOUStream.MAX_ID) {
+                throw LOGGER.throwing(new SocketException("No more stream ids"));
+            }
+            if (openStreams() >= TOUConstants.MAX_STREAMS) {
+                // the peer would not take the frames of one more
+                throw LOGGER.throwing(new SocketException("Too many open streams"));
+            }
+            TOUStream stream = new TOUStream(this, nextStreamId, 0, maxReceiveWindow());
+            nextStreamId += 2;
+            streams.put(stream.id(), stream);
+            updateOutputs();
+            return LOGGER.traceExit(stream);
+        }
+    }
+
+    /**
+     * @return the streams we have opened which are not done yet
+     */
+    private int openStreams() {
+        int open = 0;
+        for (int id : streams.keySet()) {
+            if (id != 0 && (id % 2 == 1) != isAcceptedImpl) open++;
+        }
+        return open;
+    }
 
-        TOUSystemMessage result;
-        synchronized (systemMessageMonitor) {
-            while (!isExpected.test(lastSystemMessage)) {
-                systemMessageMonitor.wait();
-                if (closed) {
-                    lastSystemMessage = null;
-                    break;
+    /**
+     * Takes the next stream the peer has opened, see {@link TOUStream#accept}.
+     */
+    TOUStream acceptStream()
+            throws IOException {
+        LOGGER.traceEntry();
+
+        int timeout = soTimeout;
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (stateMonitor) {
+            while (incomingStreams.isEmpty()) {
+                if (isAborted()) {
+                    throw LOGGER.throwing(new SocketException(abortReason));
+                }
+                if (isClosedOrPending()) {
+                    throw LOGGER.throwing(new SocketException("Socket closed"));
+                }
+                if (state.isRemoteClosed() || state == CLOSED) {
+                    return LOGGER.traceExit((TOUStream) null);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeout > 0 && remaining <= 0) {
+                    throw LOGGER.throwing(new SocketTimeoutException("Accept timed out"));
+                }
+                try {
+                    stateMonitor.wait(timeout > 0 ? remaining : 0);
+                } catch (InterruptedException e) {
+                    throw LOGGER.throwing(new InterruptedIOException(e.getMessage()));
                 }
             }
-            result = lastSystemMessage;
-            lastSystemMessage = null;
+            return LOGGER.traceExit(incomingStreams.poll());
         }
-
-        return LOGGER.traceExit(result);
     }
 
     @Override
@@ -580,34 +1988,219 @@ class TOUSocketImpl extends SocketImpl {
     @Override
     public void setOption(int optID, Object value)
             throws SocketException {
-        LOGGER.traceEntry();
+        LOGGER.traceEntry("option: {} value: {}", optID, value);
+
+        switch (optID) {
+            case SO_LINGER:
+                linger = value instanceof Integer ? Math.max(0, (Integer) value) : -1;
+                break;
+            case IP_TOS:
+                trafficClass = (Integer) value & 0xff;
+                break;
+            case TCP_NODELAY:
+                noDelay = Boolean.TRUE.equals(value);
+                if (noDelay) {
+                    pushHeldSegment();
+                }
+                break;
+            case TCP_CORK:
+                corked = Boolean.TRUE.equals(value);
+                if (!corked) {
+                    pushHeldSegment();
+                }
+                break;
+            case SO_SNDBUF:
+                sendBufferSize = intOption(value, 1, Integer.MAX_VALUE);
+                break;
+            case SO_RCVBUF:
+                receiveBufferSize = intOption(value, 1, Integer.MAX_VALUE);
+                receiveBufferLocked = true;
+                break;
+            case SO_TIMEOUT:
+                soTimeout = intOption(value, 0, Integer.MAX_VALUE);
+                break;
+            case TOU_MSS:
+                mss = intOption(value, 1, TOUConstants.MAX_DATA_SIZE);
+                break;
+            case TOU_INITIAL_RTO:
+                initialRto = intOption(value, TOUConstants.MIN_RTO, TOUConstants.MAX_RTO);
+                break;
+            case TOU_SEND_WINDOW:
+                sendWindow = intOption(value, 1, 1 << 15);
+                break;
+            case TOU_FASTOPEN:
+                fastOpen = Boolean.TRUE.equals(value);
+                break;
+            case SO_KEEPALIVE:
+                synchronized (stateMonitor) {
+                    keepAlive = Boolean.TRUE.equals(value);
+                    if (keepAlive) {
+                        startIdleCheck();
+                    }
+                }
+                break;
+            default:
+        }
+
         LOGGER.traceExit();
     }
 
     @Override
     public Object getOption(int optID)
             throws SocketException {
-        LOGGER.traceEntry();
-        return LOGGER.traceExit("{}", null);
+        LOGGER.traceEntry("option: {}", optID);
+
+        switch (optID) {
+            case SO_LINGER:
+                return LOGGER.traceExit(linger < 0 ? Boolean.FALSE : (Object) linger);
+            case SO_KEEPALIVE:
+                return LOGGER.traceExit(keepAlive);
+            case IP_TOS:
+                return LOGGER.traceExit(trafficClass);
+            case TCP_NODELAY:
+                return LOGGER.traceExit(noDelay);
+            case TCP_CORK:
+                return LOGGER.traceExit(corked);
+            case SO_SNDBUF:
+                return LOGGER.traceExit(sendBufferSize);
+            case SO_RCVBUF:
+                return LOGGER.traceExit(receiveBufferSize);
+            case SO_TIMEOUT:
+                return LOGGER.traceExit(soTimeout);
+            case TOU_MSS:
+                return LOGGER.traceExit(mss);
+            case TOU_INITIAL_RTO:
+                return LOGGER.traceExit(initialRto);
+            case TOU_SEND_WINDOW:
+                return LOGGER.traceExit(sendWindow);
+            case TOU_FASTOPEN:
+                return LOGGER.traceExit(fastOpen);
+            default:
+                return LOGGER.traceExit("{}", null);
+        }
+    }
+
+    private static int intOption(Object value, int min, int max)
+            throws SocketException {
+        if (!(value instanceof Integer) || (Integer) value < min || (Integer) value > max) {
+            throw LOGGER.throwing(new SocketException("Bad option value: " + value + ", expected " + min + ".." + max));
+        }
+        return (Integer) value;
     }
 
-    void mergeWithAckIfPending(TOUSegment segment) {
-        if (pendingAcks.isEmpty()) return;
+    /**
+     * Called by the communicator's Receiver thread now and then. The buffers of a connection are
+     * allocated on first use; once the peer has been silent for a while, the empty ones go.
+     */
+    void trimIdleBuffers(long now) {
+        if (mainStream == null || now - lastReceived < TOUConstants.BUFFER_IDLE_TIMEOUT) return;
 
-        TOUSystemMessage ack;
+        retransmissionQueue.trim();
+        for (TOUStream stream : streams.values()) {
+            stream.trim();
+        }
+        if (outputStream != null) {
+            outputStream.trim();
+        }
+    }
 
-        synchronized (pendingAcksMutex) {
-            if (pendingAcks.isEmpty()) return;
-            try {
-                ack = pendingAcks.take();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                return;
+    /**
+     * Called by the output stream for every new data segment.
+     */
+    void piggybackAck(TOUSegment segment) {
+        if (mainStream != null) {
+            TOUFactory.piggyback(segment, expectedSequenceNumber);
+            advertiseWindow(segment);
+        }
+    }
+
+    /**
+     * Called by the communicator's Sender thread before it puts a data segment on the wire.
+     */
+    void sent(TOUSegment segment) {
+        retransmissionQueue.add(segment);
+    }
+
+    /**
+     * @return false while the send window is full or the next segment is past the peer's receive window
+     */
+    boolean canSend() {
+        // the SYNACK queues the connection again
+        if (state == SYN_SENT) return false;
+        if (retransmissionQueue == null) return true;
+        if (retransmissionQueue.isFull()) return false;
+        // with nothing in flight a segment goes anyway: it probes a closed window and
+        // is retransmitted with backoff until the peer has room for it
+        return retransmissionQueue.isEmpty() || retransmissionQueue.size() < peerWindow;
+    }
+
+    /**
+     * Called by the communicator's Receiver thread for the segments with the ACK flag which came
+     * in one batch, before the segments themselves are processed.
+     */
+    void acknowledge(List<TOUSegment> acks) {
+        if (retransmissionQueue == null) return;
+
+        boolean progress = false;
+        // the retired segments free their data in the send buffers
+        synchronized (retransmissionQueue) {
+            for (TOUSegment ack : acks) {
+                progress |= acknowledge(ack);
             }
         }
+        if (progress && hasUnsentOutput()) {
+            // the window may have been full
+            outputReady();
+        }
+    }
+
+    /**
+     * @return whether the ACK retired a segment or opened the peer's window
+     */
+    private boolean acknowledge(TOUSegment ack) {
+        int retired = retransmissionQueue.acknowledge(ack.ackNumber());
+        if (ack.tcpSegment.isSACK() && retransmissionQueue.acknowledgeSelectively(ack.sequenceNumber())) {
+            ++retired;
+        }
+        // an ACK reordered behind a newer one brings a stale window
+        if (ack.ackNumber() - peerWindowAck < 0) {
+            return retired > 0;
+        }
+        boolean windowOpened = ack.window() > peerWindow;
+        peerWindowAck = ack.ackNumber();
+        peerWindow = ack.window();
+        return retired > 0 || windowOpened;
+    }
+
+    /**
+     * Called by the retransmission queue on the timer thread before a tail loss probe: new data
+     * the Sender is about to send probes just as well.
+     */
+    boolean hasSendableData() {
+        if (!canSend()) return false;
+        for (TOUSocketOutputStream output : outputs) {
+            if (output.pending() > 0 && !output.holdsPartialSegment()) return true;
+        }
+        return false;
+    }
 
-        if (TOUFactory.canMerge(segment, ack)) {
-            TOUFactory.merge(segment, ack);
+    /**
+     * Called by the retransmission queue on the timer thread.
+     */
+    void retransmit(List<TOUSegment> lost) {
+        for (TOUSegment segment : lost) {
+            communicator.retransmit(segment);
         }
     }
+
+    /**
+     * Called by the retransmission queue on the timer thread when the peer stays silent.
+     */
+    void retransmissionsExhausted() {
+        synchronized (stateMonitor) {
+            if (closed || !state.isSynchronized()) return;
+            reap();
+        }
+    }
+
 }
@@ -4,6 +4,11 @@ import java.net.SocketImpl;
 import java.net.SocketImplFactory;
 
 public class TOUSocketImplFactory implements SocketImplFactory {
+    public TOUSocketImplFactory() {
+        // warm up the UDP endpoints for the connect() calls to come, if asked to
+        TOUEndpointPool.fill();
+    }
+
     @Override
     public SocketImpl createSocketImpl() {
         return new TOUSocketImpl();
@@ -5,23 +5,34 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 class TOUSocketInputStream extends InputStream {
     static { TOULog4JUtils.initIfNotInitYet(); }
     private static final Logger LOGGER = LogManager.getLogger("TOUSocketInputStream");
 
     private final TOUSocketImpl impl;
+    // null for the main stream, which ends with the connection
+    private final TOUStream stream;
     private ByteBuffer buffer;
-    private short sequenceNumber = 0;
     private boolean eof = false;
-    final Object lock = new Object();
+    // the pieces of the message readMessage() waits the rest of
+    private final List<byte[]> message = new ArrayList<>();
 
     TOUSocketInputStream(TOUSocketImpl impl) {
-        LOGGER.traceEntry("impl: {}", ()->impl);
+        this(impl, null);
+    }
+
+    TOUSocketInputStream(TOUSocketImpl impl, TOUStream stream) {
+        LOGGER.traceEntry("impl: {} stream: {}", ()->impl, ()->stream);
 
         this.impl = impl;
-        this.sequenceNumber = impl.initialSequenceNumber;
+        this.stream = stream;
 
         LOGGER.traceExit();
     }
@@ -34,28 +45,12 @@ class TOUSocketInputStream extends InputStream {
             return LOGGER.traceExit(-1);
         }
 
-        try {
-            if (buffer == null || !buffer.hasRemaining()) {
-                if (closing || impl.isClosedOrPending()) {
-                    throw LOGGER.throwing(new IOException("Stream closed"));
-                }
-                short seq = sequenceNumber;
-                byte[] data = impl.nextDataSegment(seq);
-                if (data == null) {
-                    eof = true;
-                    return LOGGER.traceExit(-1);
-                }
-                buffer = ByteBuffer.wrap(data);
-                incrementSequenceNumber();
-            }
-        } catch (InterruptedException e) {
-            LOGGER.catching(e);
-            e.printStackTrace();
-//            throw LOGGER.throwing(new IOException(e));
+        if (!fillBuffer()) {
+            return LOGGER.traceExit(-1);
         }
 
         if (buffer.hasRemaining()) {
-            return LOGGER.traceExit(buffer.get());
+            return LOGGER.traceExit(buffer.get() & 0xff);
         }
 
         /*
@@ -68,9 +63,129 @@ class TOUSocketInputStream extends InputStream {
         return LOGGER.traceExit(-1);
     }
 
-    private void incrementSequenceNumber() {
-        LOGGER.trace("Increment sequenceNumber: {}->{}", sequenceNumber, (short) (sequenceNumber + 1));
-        ++sequenceNumber;
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        LOGGER.traceEntry("off: {} len: {}", off, len);
+
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return LOGGER.traceExit(0);
+        }
+        if (eof || !fillBuffer()) {
+            return LOGGER.traceExit(-1);
+        }
+
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return LOGGER.traceExit(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    /**
+     * Reads a message, see {@link TOUStream#receiveMessage()}. A message in one segment is
+     * returned as it came, the pieces of a larger one are copied together once.
+     *
+     * @return null on end of stream
+     */
+    byte[] readMessage() throws IOException {
+        LOGGER.traceEntry();
+
+        if (eof) {
+            return LOGGER.traceExit((byte[]) null);
+        }
+        if (buffer != null && buffer.hasRemaining()) {
+            // the rest of a message the byte stream reader has started
+            message.add(Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit()));
+        }
+        buffer = null;
+
+        byte[] data;
+        while (true) {
+            data = nextSegment();
+            if (data == null) {
+                // the stream never ends inside a message unless the connection does
+                eof = true;
+                message.clear();
+                return LOGGER.traceExit((byte[]) null);
+            }
+            if (data == TOUStream.MESSAGE_ABANDONED) {
+                // the peer has given up on the rest of the message
+                message.clear();
+            } else if (data != TOUStream.MESSAGE_END) {
+                message.add(data);
+            } else if (!message.isEmpty()) {
+                break;
+            }
+            // else the end of a message read from the input stream whole
+        }
+
+        if (message.size() == 1) {
+            data = message.get(0);
+        } else {
+            int size = 0;
+            for (byte[] piece : message) {
+                size += piece.length;
+            }
+            data = new byte[size];
+            int position = 0;
+            for (byte[] piece : message) {
+                System.arraycopy(piece, 0, data, position, piece.length);
+                position += piece.length;
+            }
+        }
+        message.clear();
+        return LOGGER.traceExit(data);
+    }
+
+    /**
+     * Takes the next in-order segment from the impl if the current one is consumed.
+     *
+     * @return false on end of stream
+     */
+    private boolean fillBuffer() throws IOException {
+        if (buffer != null && buffer.hasRemaining()) return true;
+
+        // the consumed segment is not kept while the reader waits for the next one
+        buffer = null;
+        byte[] data;
+        do {
+            data = nextSegment();
+        } while (data != null && data.length == 0);
+        if (data == null) {
+            eof = true;
+            return false;
+        }
+        buffer = ByteBuffer.wrap(data);
+        return true;
+    }
+
+    /**
+     * @return the next piece of data or a mark between messages, null on end of stream
+     */
+    private byte[] nextSegment() throws IOException {
+        if (closing || impl.isClosedOrPending()) {
+            throw LOGGER.throwing(new IOException("Stream closed"));
+        }
+        if (impl.isAborted()) {
+            throw LOGGER.throwing(new SocketException(impl.abortReason()));
+        }
+
+        byte[] data;
+        try {
+            data = impl.nextDataSegment(stream);
+        } catch (InterruptedException e) {
+            throw LOGGER.throwing(new InterruptedIOException(e.getMessage()));
+        }
+        if (impl.isAborted()) {
+            throw LOGGER.throwing(new SocketException(impl.abortReason()));
+        }
+        return data;
     }
 
     private boolean closing = false;
@@ -80,6 +195,10 @@ class TOUSocketInputStream extends InputStream {
 
         closing = true;
 
-        impl.close();
+        if (stream == null) {
+            impl.close();
+        } else {
+            stream.closeInput();
+        }
     }
 }
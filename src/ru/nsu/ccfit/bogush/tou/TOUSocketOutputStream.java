@@ -2,95 +2,321 @@ package ru.nsu.ccfit.bogush.tou;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import ru.nsu.ccfit.bogush.tcp.TCPSegment;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
-
-import static ru.nsu.ccfit.bogush.tou.TOUConstants.MAX_DATA_SIZE;
+import java.util.ArrayDeque;
 
 class TOUSocketOutputStream extends OutputStream {
     static { TOULog4JUtils.initIfNotInitYet(); }
     private static final Logger LOGGER = LogManager.getLogger(TOUSocketOutputStream.class.getSimpleName());
 
     private final TOUSocketImpl impl;
-    private final ByteBuffer buffer;
-    private short sequenceNumber;
+    // null for the main stream, which ends with the connection
+    private final TOUStream stream;
+    private final TOUSendBuffer buffer;
+    // the messages written and not cut to their ends yet, under the buffer lock
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+    // held by a writer for all it appends, so that the bytes of a message are not mixed with others
+    private final Object writeLock = new Object();
+    // set by flush() so that the Sender does not hold back the tail of the buffer
+    private volatile boolean pushed = false;
+    // set by close() of any other stream, the Sender ends the stream with a frame
+    private volatile boolean finPending = false;
+    // touched by the communicator's Sender thread only
+    private boolean finSent = false;
 
     public TOUSocketOutputStream(TOUSocketImpl impl) {
-        LOGGER.traceEntry("impl: {}", ()->impl);
+        this(impl, null, impl.initialSequenceNumber);
+    }
+
+    TOUSocketOutputStream(TOUSocketImpl impl, TOUStream stream) {
+        this(impl, stream, 0);
+    }
+
+    private TOUSocketOutputStream(TOUSocketImpl impl, TOUStream stream, int initialOffset) {
+        LOGGER.traceEntry("impl: {} stream: {}", ()->impl, ()->stream);
 
         this.impl = impl;
-        this.sequenceNumber = impl.initialSequenceNumber;
-        this.buffer = ByteBuffer.allocate(MAX_DATA_SIZE);
+        this.stream = stream;
+        this.buffer = new TOUSendBuffer(impl.sendBufferSize(), initialOffset);
 
         LOGGER.traceExit();
     }
 
+    TOUSocketImpl impl() {
+        return impl;
+    }
+
     @Override
     public void write(byte[] b) throws IOException {
-        if (closing || impl.isClosedOrPending()) {
-            throw LOGGER.throwing(new IOException("Stream closed"));
-        }
-        super.write(b);
+        write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        if (closing || impl.isClosedOrPending()) {
-            throw LOGGER.throwing(new IOException("Stream closed"));
+        LOGGER.traceEntry("off: {} len: {}", off, len);
+
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+
+        synchronized (writeLock) {
+            append(b, off, len);
+        }
+
+        LOGGER.traceExit();
+    }
+
+    /**
+     * Puts the bytes in the buffer as it makes room for them. Called under the write lock.
+     */
+    private void append(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+            synchronized (buffer) {
+                awaitRoom();
+                n = buffer.put(b, off, len);
+            }
+            off += n;
+            len -= n;
+            signalSender();
         }
-        super.write(b, off, len);
+    }
+
+    /**
+     * Writes a message, see {@link TOUStream#sendMessage(byte[], int, int)}. The Sender cuts no
+     * segment across its start or end and does not hold its tail back.
+     *
+     * @param deadline the time the message is abandoned at, 0 for never
+     * @param maxRetransmissions negative for no limit
+     */
+    void writeMessage(byte[] message, long deadline, int maxRetransmissions) throws IOException {
+        LOGGER.traceEntry("len: {} deadline: {} max retransmissions: {}", message.length, deadline, maxRetransmissions);
+
+        if (message.length == 0) {
+            throw LOGGER.throwing(new IllegalArgumentException("Empty message"));
+        }
+        ensureOpen();
+        synchronized (writeLock) {
+            synchronized (buffer) {
+                // known before the Sender may cut any of it
+                int start = buffer.sequenceNumber() + buffer.unsent();
+                messages.add(new Message(start, start + message.length, deadline, maxRetransmissions));
+            }
+            append(message, 0, message.length);
+        }
+
+        LOGGER.traceExit();
     }
 
     @Override
     public void write(int b) throws IOException {
         LOGGER.traceEntry("byte: {}", (byte) b);
 
-        if (closing || impl.isClosedOrPending()) {
-            throw LOGGER.throwing(new IOException("Stream closed"));
+        ensureOpen();
+
+        synchronized (writeLock) {
+            synchronized (buffer) {
+                awaitRoom();
+                buffer.put((byte) b);
+            }
         }
+        signalSender();
+
+        LOGGER.traceExit();
+    }
 
+    /**
+     * Waits until the peer acknowledges some of the data in a full buffer. Called under the buffer lock.
+     */
+    private void awaitRoom() throws IOException {
         try {
-            if (!buffer.hasRemaining()) {
-                synchronized (buffer) {
-                    while (!buffer.hasRemaining()) {
-                        buffer.wait();
-                    }
-                }
+            while (buffer.free() == 0 && !impl.isAborted()) {
+                buffer.wait();
             }
-            buffer.put((byte) b);
         } catch (InterruptedException e) {
             LOGGER.catching(e);
             throw LOGGER.throwing(new IOException(e));
         }
-        LOGGER.traceExit();
+        ensureOpen();
     }
 
-    private void incrementSequenceNumber() {
-        LOGGER.trace("Increment sequenceNumber: {}->{}", sequenceNumber, (short) (sequenceNumber + 1));
-        ++sequenceNumber;
+    /**
+     * Lets the Sender pick the data up at once instead of on its next poll.
+     */
+    private void signalSender() {
+        impl.outputReady();
     }
 
+    private void ensureOpen() throws IOException {
+        if (impl.isAborted()) {
+            throw LOGGER.throwing(new SocketException(impl.abortReason()));
+        }
+        if (closing || impl.isClosedOrPending()) {
+            throw LOGGER.throwing(new IOException("Stream closed"));
+        }
+    }
+
+    /**
+     * Discards unsent data and wakes up the writers after the connection is aborted.
+     */
+    void abort() {
+        synchronized (buffer) {
+            buffer.clear();
+            messages.clear();
+        }
+    }
+
+    /**
+     * Gives the send ring back to the pool if all of it is acknowledged.
+     */
+    void trim() {
+        buffer.trim();
+    }
+
+    /**
+     * @return the bytes written but not sent yet
+     */
     int available() {
-        return buffer.position();
+        return buffer.unsent();
+    }
+
+    /**
+     * Called by the Sender.
+     *
+     * @return the bytes of data the next segment carries, 0 if there is nothing to send;
+     * a frame which only ends the stream counts as one
+     */
+    int pending() {
+        synchronized (buffer) {
+            int unsent = buffer.unsent();
+            if (unsent > 0) return Math.min(unsent, limit(buffer.sequenceNumber()));
+        }
+        return finPending && !finSent ? 1 : 0;
+    }
+
+    /**
+     * Nagle's algorithm and cork for the tail of this buffer, see {@link TOUSocketImpl#holdsPartialSegment()}.
+     * Called without the buffer lock, the impl looks at the retransmission queue.
+     */
+    boolean holdsPartialSegment() {
+        int unsent;
+        int room;
+        synchronized (buffer) {
+            if (!messages.isEmpty()) return false;
+            unsent = buffer.unsent();
+            room = room(buffer.sequenceNumber());
+        }
+        if (unsent == 0 || unsent >= room || pushed || finPending) return false;
+        return impl.holdsPartialSegment();
+    }
+
+    /**
+     * The main stream goes unframed while its offsets are the sequence numbers of the connection.
+     * The first frame of any other stream puts them apart for good, every segment is framed then.
+     */
+    private boolean isFramed(int offset) {
+        return stream != null || offset != impl.sendSequenceNumber();
+    }
+
+    /**
+     * @return the most data the segment starting at the offset may carry
+     */
+    private int room(int offset) {
+        return isFramed(offset) ? Math.max(1, impl.mss() - TOUStream.HEADER_SIZE) : impl.mss();
+    }
+
+    /**
+     * @return the most data the segment starting at the offset may carry without crossing the start
+     * or the end of a message. Called under the buffer lock.
+     */
+    private int limit(int offset) {
+        Message message = messages.peekFirst();
+        if (message == null) return room(offset);
+        int boundary = offset - message.start < 0 ? message.start : message.end;
+        return Math.min(room(offset), boundary - offset);
+    }
+
+    /**
+     * Copies up to size bytes written but not sent yet, for the SYN of fast open.
+     * They stay unsent until the peer acknowledges them, see {@link #skip(int)}.
+     */
+    byte[] peek(int size) {
+        synchronized (buffer) {
+            byte[] data = new byte[Math.min(size, buffer.unsent())];
+            buffer.get(buffer.sequenceNumber(), data.length, ByteBuffer.wrap(data));
+            return data;
+        }
+    }
+
+    /**
+     * Called by the communicator's Receiver thread with the SYNACK of fast open,
+     * the peer has got the data before ackNumber on our SYN.
+     */
+    void skip(int ackNumber) {
+        synchronized (buffer) {
+            buffer.skip(ackNumber);
+            if (buffer.unsent() == 0) {
+                pushed = false;
+            }
+        }
     }
 
     TOUSegment flushIntoSegment() {
         LOGGER.traceEntry();
 
         TOUSegment segment;
+        boolean fin = false;
         synchronized (buffer) {
-            if (buffer.position() == 0) return null;
-            int size = buffer.position();
-            buffer.position(0);
-            byte[] data = new byte[size];
-            System.arraycopy(buffer.array(), 0, data, 0, size);
-            segment = impl.factory.createTOUSegment(data, sequenceNumber);
-            impl.mergeWithAckIfPending(segment);
-            incrementSequenceNumber();
-            buffer.notify();
+            int sequenceNumber = impl.sendSequenceNumber();
+            int offset = buffer.sequenceNumber();
+            boolean framed = isFramed(offset);
+            Message message = messages.peekFirst();
+            if (message != null && offset - message.start < 0) {
+                // bytes written before the message
+                message = null;
+            }
+            boolean abandoned = message != null && message.isExpired(System.currentTimeMillis());
+            // the rest of an abandoned message is not sent, one skip frame goes in its place
+            int size = buffer.cut(abandoned ? message.end - offset : limit(offset));
+            boolean eom = message != null && size > 0 && offset + size == message.end;
+            if (eom) {
+                messages.pollFirst();
+            }
+            if (finPending && !finSent && buffer.unsent() == 0) {
+                // the last data segment ends the stream, or a frame without data does
+                fin = finSent = true;
+            } else if (size == 0) {
+                return LOGGER.traceExit((TOUSegment) null);
+            }
+            int id = stream == null ? 0 : stream.id();
+            if (abandoned) {
+                LOGGER.debug("abandon {} unsent bytes of a message of stream {}", size, id);
+                // the buffer frees the bytes once the peer acknowledges the skip frame
+                segment = impl.factory.createTOUSegment(buffer, sequenceNumber, offset + size, 0,
+                        TOUStream.skip(id, message.start, message.end, fin, TOUStream.SKIP_SIZE));
+            } else {
+                // the data stays in the buffer until the peer acknowledges it
+                byte[] frame = framed ? TOUStream.frame(id, offset, fin, eom) : null;
+                segment = impl.factory.createTOUSegment(buffer, sequenceNumber, offset, size, frame);
+                if (message != null && message.isPartiallyReliable()) {
+                    segment.abandonAfter(message.deadline, message.maxRetransmissions, message.start, message.end);
+                }
+            }
+            impl.sendSequenceNumber(sequenceNumber + segment.dataSize());
+            impl.piggybackAck(segment);
+            if (buffer.unsent() == 0) {
+                pushed = false;
+                // flush() waits for the buffer to be sent
+                buffer.notifyAll();
+            }
+        }
+        if (fin) {
+            stream.outputFinished();
         }
 
         return LOGGER.traceExit(segment);
@@ -101,10 +327,15 @@ class TOUSocketOutputStream extends OutputStream {
         LOGGER.traceEntry();
 //        if (impl.isClosedOrPending()) return;
 
-        if (available() > 0) synchronized (this) {
-            while (available() > 0) {
+        if (available() > 0) {
+            pushed = true;
+            signalSender();
+        }
+
+        if (available() > 0) synchronized (buffer) {
+            while (available() > 0 && !impl.isAborted()) {
                 try {
-                    this.wait();
+                    buffer.wait();
                 } catch (InterruptedException e) {
                     LOGGER.catching(e);
                     break;
@@ -112,6 +343,10 @@ class TOUSocketOutputStream extends OutputStream {
             }
         }
 
+        if (impl.isAborted()) {
+            throw LOGGER.throwing(new SocketException(impl.abortReason()));
+        }
+
         LOGGER.traceExit();
     }
 
@@ -122,7 +357,37 @@ class TOUSocketOutputStream extends OutputStream {
 
         closing = true;
 
-        flush();
-        impl.close();
+        if (stream == null) {
+            // the impl drains what is left in background
+            impl.close();
+            return;
+        }
+        finPending = true;
+        signalSender();
+    }
+
+    /**
+     * A message written and not cut to its end yet, see {@link #writeMessage}.
+     */
+    private static final class Message {
+        final int start;
+        final int end;
+        final long deadline;
+        final int maxRetransmissions;
+
+        Message(int start, int end, long deadline, int maxRetransmissions) {
+            this.start = start;
+            this.end = end;
+            this.deadline = deadline;
+            this.maxRetransmissions = maxRetransmissions;
+        }
+
+        boolean isPartiallyReliable() {
+            return deadline != 0 || maxRetransmissions >= 0;
+        }
+
+        boolean isExpired(long now) {
+            return deadline != 0 && now - deadline >= 0;
+        }
     }
 }
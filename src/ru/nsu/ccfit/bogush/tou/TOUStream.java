@@ -0,0 +1,509 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.nsu.ccfit.bogush.util.SPSCRingBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * One of the streams multiplexed over a TOU connection, like the streams of QUIC (RFC 9000):
+ * every stream has its own input and output and is ordered on its own, while the sequence
+ * numbers, the send window, the retransmissions and the receive window of the connection are
+ * shared by all of them. A lost segment holds back the data of its own stream only, the data
+ * of the other streams behind it is delivered as soon as it comes.
+ * <p>
+ * The socket's own input and output streams are the main stream, id 0. Either side opens more
+ * with {@link #open(Socket)} and the other side takes them with {@link #accept(Socket)}; the side
+ * which connected gives them odd ids and the accepting side even ones. A stream reaches the peer
+ * with its first frame, so opening one costs nothing on the wire, and closing its output stream
+ * ends the input stream on the peer's side. The end of the connection ends all of them.
+ * <p>
+ * A data segment with the STREAM flag starts with a frame header: the id of the stream in 13 bits
+ * with the end of the stream in the top bit, then the offset of the data in the stream in 4 bytes.
+ * The main stream goes without the header while it is the only one used, so a connection which
+ * never opens a stream looks on the wire the same as before streams.
+ * <p>
+ * A stream also carries messages, see {@link #sendMessage(byte[])}: the segments of a message are cut
+ * on its boundaries and the last one has the end of message bit, the bit below the end of the stream.
+ * The message comes out of {@link #receiveMessage()} whole, one segment of it is handed over as is.
+ * <p>
+ * A message may be sent partially reliably, like in PR-SCTP (RFC 3758): once its lifetime is over
+ * or its segments have been retransmitted as many times as allowed, the sender abandons it. A segment
+ * of it which is due to go again goes as a skip frame instead, with the abandon bit below the end of
+ * message bit, the offset past the message, in 2 more bytes the sequence numbers it stands for, so
+ * the connection has no gap, and in 4 more the offset the message starts at. The rest of the message
+ * which is not sent yet goes as one skip frame as well. Once the peer has the data before the message,
+ * it drops what it holds of the message and goes on with the data past it.
+ */
+public final class TOUStream {
+    static { TOULog4JUtils.initIfNotInitYet(); }
+    private static final Logger LOGGER = LogManager.getLogger(TOUStream.class.getSimpleName());
+
+    static final int HEADER_SIZE = 6; // bytes
+    static final int SKIP_SIZE = HEADER_SIZE + 6; // bytes
+    static final int MAX_ID = 0x1fff;
+    private static final int FIN_BIT = 0x8000;
+    private static final int EOM_BIT = 0x4000;
+    private static final int ABANDON_BIT = 0x2000;
+    // put in the ring after the last piece of a message, the byte stream readers skip it
+    static final byte[] MESSAGE_END = new byte[0];
+    // put in the ring when the rest of a message partly delivered is abandoned, the byte stream readers skip it
+    static final byte[] MESSAGE_ABANDONED = new byte[0];
+
+    private final TOUSocketImpl impl;
+    private final int id;
+    // receive side: touched by the communicator's Receiver thread only
+    // out-of-order data by its offset in the stream, pieces may overlap after the peer repacketizes
+    private final TreeMap<Integer, byte[]> outOfOrder = new TreeMap<>((a, b) -> a - b);
+    private int expected; // the offset of the next byte to deliver
+    private int end; // the offset past the last byte, once the frame which ends the stream came
+    private boolean endKnown = false;
+    // a message is delivered in part, the rest of it is still to come
+    private boolean midMessage = false;
+    // the offsets past the messages which are not delivered up to their end yet
+    private final TreeSet<Integer> messageEnds = new TreeSet<>((a, b) -> a - b);
+    // the offsets past the abandoned messages by the offsets they start at, while data before them is missing
+    private final TreeMap<Integer, Integer> skips = new TreeMap<>((a, b) -> a - b);
+    // in-order data handed off to the thread reading from the input stream
+    private final SPSCRingBuffer<byte[]> inOrder;
+    private volatile boolean inputClosed = false;
+    private volatile boolean inputFinished = false;
+    private volatile boolean outputFinished = false;
+    // null for the main stream, the socket has its own
+    private final TOUSocketInputStream input;
+    private final TOUSocketOutputStream output;
+
+    /**
+     * @param initialOffset the offset of the first byte the peer sends on the stream
+     * @param capacity the most pieces of data delivered but not read yet
+     */
+    TOUStream(TOUSocketImpl impl, int id, int initialOffset, int capacity) {
+        this.impl = impl;
+        this.id = id;
+        this.expected = initialOffset;
+        this.inOrder = new SPSCRingBuffer<>(capacity);
+        if (id == 0) {
+            this.input = null;
+            this.output = null;
+        } else {
+            this.input = new TOUSocketInputStream(impl, this);
+            this.output = new TOUSocketOutputStream(impl, this);
+        }
+    }
+
+    /**
+     * Opens a new stream on a connected TOU socket.
+     *
+     * @throws SocketException if the socket is not a connected TOU socket
+     */
+    public static TOUStream open(Socket socket)
+            throws IOException {
+        return implOf(socket).openStream();
+    }
+
+    /**
+     * Waits for the peer to open a stream, for SO_TIMEOUT at most.
+     *
+     * @return null once the peer has closed the connection and opens no more streams
+     * @throws java.net.SocketTimeoutException if SO_TIMEOUT elapses first
+     */
+    public static TOUStream accept(Socket socket)
+            throws IOException {
+        return implOf(socket).acceptStream();
+    }
+
+    private static TOUSocketImpl implOf(Socket socket)
+            throws IOException {
+        OutputStream out = socket.getOutputStream();
+        if (out instanceof TOUSocketOutputStream) {
+            return ((TOUSocketOutputStream) out).impl();
+        }
+        TOUSocketImpl impl = TOUSocketImpl.connection(socket.getLocalPort(), socket.getRemoteSocketAddress());
+        if (impl == null) {
+            throw LOGGER.throwing(new SocketException("Not a connected TOU socket"));
+        }
+        return impl;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Sends a message, the peer gets it whole from {@link #receiveMessage()}. A message larger than
+     * a segment goes in several. Returns once the message is in the send buffer, like write() does.
+     *
+     * @throws IllegalArgumentException if the message is empty
+     */
+    public void sendMessage(byte[] message)
+            throws IOException {
+        output.writeMessage(message, 0, -1);
+    }
+
+    /**
+     * Sends a message which the sender abandons once it is late, the peer never gets it then
+     * and goes on with the next one. Whatever limit comes first abandons the message.
+     *
+     * @param lifetime the milliseconds from now the message may take to reach the peer, 0 for no limit
+     * @param maxRetransmissions how many times a segment of the message may be sent again,
+     *                           negative for no limit
+     * @throws IllegalArgumentException if the message is empty or the lifetime is negative
+     */
+    public void sendMessage(byte[] message, int lifetime, int maxRetransmissions)
+            throws IOException {
+        if (lifetime < 0) {
+            throw LOGGER.throwing(new IllegalArgumentException("Negative lifetime: " + lifetime));
+        }
+        long deadline = lifetime == 0 ? 0 : Math.max(System.currentTimeMillis() + lifetime, 1);
+        output.writeMessage(message, deadline, maxRetransmissions);
+    }
+
+    /**
+     * Waits for the next message, for SO_TIMEOUT at most. What is already read of it from
+     * the input stream is not returned. A timeout keeps the part of the message which came.
+     *
+     * @return null at the end of the stream
+     * @throws java.net.SocketTimeoutException if SO_TIMEOUT elapses first
+     */
+    public byte[] receiveMessage()
+            throws IOException {
+        return input.readMessage();
+    }
+
+    /**
+     * Ends the stream on the peer's side once everything written is sent, and drops
+     * what the peer sends on it from now on.
+     */
+    public void close()
+            throws IOException {
+        output.close();
+        input.close();
+    }
+
+    /**
+     * @return the frame header of a segment of the given stream
+     */
+    static byte[] frame(int id, int offset, boolean fin, boolean eom) {
+        int bits = id | (fin ? FIN_BIT : 0) | (eom ? EOM_BIT : 0);
+        return new byte[] {
+                (byte) (bits >>> 8), (byte) bits,
+                (byte) (offset >>> 24), (byte) (offset >>> 16), (byte) (offset >>> 8), (byte) offset
+        };
+    }
+
+    /**
+     * @param start the offset the abandoned message starts at
+     * @param offset the offset past the abandoned message
+     * @param length the sequence numbers the segment takes, those of the segment it replaces
+     * @return the skip frame which goes instead of the data of an abandoned message
+     */
+    static byte[] skip(int id, int start, int offset, boolean fin, int length) {
+        int bits = id | (fin ? FIN_BIT : 0) | ABANDON_BIT;
+        return new byte[] {
+                (byte) (bits >>> 8), (byte) bits,
+                (byte) (offset >>> 24), (byte) (offset >>> 16), (byte) (offset >>> 8), (byte) offset,
+                (byte) (length >>> 8), (byte) length,
+                (byte) (start >>> 24), (byte) (start >>> 16), (byte) (start >>> 8), (byte) start
+        };
+    }
+
+    static int frameId(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 8 | bytes[offset + 1] & 0xff) & MAX_ID;
+    }
+
+    static boolean frameEom(byte[] bytes, int offset) {
+        return (bytes[offset] & 0x40) != 0;
+    }
+
+    static boolean frameAbandon(byte[] bytes, int offset) {
+        return (bytes[offset] & 0x20) != 0;
+    }
+
+    static int skipLength(byte[] bytes, int offset) {
+        return (bytes[offset + 6] & 0xff) << 8 | bytes[offset + 7] & 0xff;
+    }
+
+    static int skipStart(byte[] bytes, int offset) {
+        return (bytes[offset + 8] & 0xff) << 24 | (bytes[offset + 9] & 0xff) << 16 |
+                (bytes[offset + 10] & 0xff) << 8 | bytes[offset + 11] & 0xff;
+    }
+
+    static boolean frameFin(byte[] bytes, int offset) {
+        return (bytes[offset] & 0x80) != 0;
+    }
+
+    static int frameOffset(byte[] bytes, int offset) {
+        return (bytes[offset + 2] & 0xff) << 24 | (bytes[offset + 3] & 0xff) << 16 |
+                (bytes[offset + 4] & 0xff) << 8 | bytes[offset + 5] & 0xff;
+    }
+
+    SPSCRingBuffer<byte[]> inOrder() {
+        return inOrder;
+    }
+
+    TOUSocketOutputStream output() {
+        return output;
+    }
+
+    /**
+     * @return true once nothing more goes either way on the stream, the connection forgets it then
+     */
+    boolean isDone() {
+        return outputFinished && (inputFinished || inputClosed);
+    }
+
+    boolean isOutputFinished() {
+        return outputFinished;
+    }
+
+    /**
+     * Called by the Receiver thread for the data of a segment, which starts at the offset in the stream.
+     * The reader is not woken up, see {@link TOUSocketImpl#processSegments}.
+     *
+     * @param fin whether the data ends the stream
+     * @param eom whether the data ends a message
+     * @return false if there is no room for the data, it is not acknowledged then and comes again
+     */
+    boolean receive(int offset, byte[] data, boolean fin, boolean eom) {
+        int size = data.length;
+        int distance = offset - expected;
+        if (fin) {
+            end = offset + size;
+            endKnown = true;
+        }
+
+        if (inputClosed) {
+            // nobody reads it any more
+            forget();
+        } else if ((long) distance + size > 0) {
+            // every out-of-order piece takes a slot of the ring once the gap before it is filled,
+            // so the ring must have room for all of them and for a piece filling the gap,
+            // and for the marks after the messages they end
+            int room = room();
+            if (room < (distance > 0 ? 2 : 1) + (eom ? 1 : 0)) {
+                // the ACK still tells the peer we are alive, it keeps probing with backed off retransmissions
+                LOGGER.debug("drop offset: {} of stream {} which is out of receive window", offset, id);
+                return false;
+            }
+
+            if (distance > 0) {
+                // a repacketized retransmission may start where a shorter segment did
+                byte[] held = outOfOrder.get(offset);
+                if (held != null && held.length >= size) return true;
+                // under memory pressure out-of-order data goes first, it is not acknowledged and comes again
+                if (impl.isUnderMemoryPressure() || !impl.charge(size - (held == null ? 0 : held.length))) {
+                    LOGGER.debug("drop out-of-order offset: {} of stream {} under memory pressure", offset, id);
+                    return false;
+                }
+                if (eom) {
+                    messageEnds.add(offset + size);
+                }
+                outOfOrder.put(offset, data);
+                return true;
+            }
+
+            if (!impl.charge(size + distance)) {
+                LOGGER.debug("drop offset: {} of stream {} which does not fit in receive memory", offset, id);
+                return false;
+            }
+            if (eom) {
+                messageEnds.add(offset + size);
+            }
+            // a repacketized retransmission may start with bytes we already have
+            deliver(data, -distance);
+            deliverOutOfOrder();
+        }
+
+        finishIfEnded();
+        return true;
+    }
+
+    /**
+     * Called by the Receiver thread for a skip frame: the peer has abandoned the message between the
+     * offsets. The data before the message is delivered first, the skip waits for it if it is missing.
+     *
+     * @param start the offset the message starts at
+     * @param offset the offset past the message
+     * @param fin whether the stream ends at the offset
+     * @return false if there is no room to tell the reader, the skip frame is not acknowledged then
+     */
+    boolean skip(int start, int offset, boolean fin) {
+        if (fin) {
+            end = offset;
+            endKnown = true;
+        }
+
+        if (inputClosed) {
+            forget();
+        } else if (offset - expected > 0) {
+            // the reader may have to be told about a message delivered in part once the skip is done
+            if ((midMessage || start - expected > 0) && room() < 1) {
+                LOGGER.debug("drop skip to offset: {} of stream {} which is out of receive window", offset, id);
+                return false;
+            }
+            if (start - expected > 0) {
+                LOGGER.debug("stream {} skips to offset: {} once it has the data before offset: {}", id, offset, start);
+                Integer held = skips.get(start);
+                if (held == null || offset - held > 0) {
+                    skips.put(start, offset);
+                }
+                return true;
+            }
+            abandon(offset);
+            // what is held past the gap is in order now, and what is held before it is dropped
+            deliverOutOfOrder();
+        }
+
+        finishIfEnded();
+        return true;
+    }
+
+    /**
+     * @return the slots of the ring left once the data and the marks held back get theirs
+     */
+    private int room() {
+        return inOrder.remainingCapacity() - outOfOrder.size() - messageEnds.size() - skips.size();
+    }
+
+    /**
+     * Drops the rest of the abandoned messages up to the offset.
+     */
+    private void abandon(int offset) {
+        LOGGER.debug("stream {} skips {} bytes of abandoned messages", id, offset - expected);
+        if (midMessage) {
+            // the reader drops the beginning of the message it has got
+            inOrder.offerQuietly(MESSAGE_ABANDONED);
+            midMessage = false;
+            impl.delivered(this);
+        }
+        expected = offset;
+        messageEnds.headSet(offset, true).clear();
+    }
+
+    private void deliverOutOfOrder() {
+        Map.Entry<Integer, byte[]> next;
+        Map.Entry<Integer, Integer> skip;
+        while (true) {
+            if ((skip = skips.firstEntry()) != null && skip.getKey() - expected <= 0) {
+                // the data before an abandoned message is all here, what is held of the message is dropped
+                skips.pollFirstEntry();
+                if (skip.getValue() - expected > 0) {
+                    abandon(skip.getValue());
+                }
+            } else if ((next = outOfOrder.firstEntry()) != null && next.getKey() - expected <= 0) {
+                outOfOrder.pollFirstEntry();
+                int length = next.getValue().length;
+                int skipped = expected - next.getKey();
+                if (skipped < length) {
+                    deliver(next.getValue(), skipped);
+                }
+                impl.uncharge(Math.min(skipped, length));
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void finishIfEnded() {
+        if (endKnown && expected == end && !inputFinished) {
+            LOGGER.trace("stream {} is finished by the peer", id);
+            inputFinished = true;
+            inOrder.close();
+            impl.retireIfDone(this);
+        }
+    }
+
+    private void deliver(byte[] data, int skip) {
+        if (skip > 0) {
+            data = Arrays.copyOfRange(data, skip, data.length);
+        }
+        inOrder.offerQuietly(data);
+        expected += data.length;
+        midMessage = true;
+        if (!messageEnds.isEmpty() && messageEnds.first() - expected <= 0) {
+            messageEnds.pollFirst();
+            inOrder.offerQuietly(MESSAGE_END);
+            midMessage = false;
+        }
+        impl.delivered(this);
+    }
+
+    /**
+     * Drops the out-of-order data of a stream whose reader is gone. Called by the Receiver thread.
+     */
+    void forget() {
+        for (byte[] data : outOfOrder.values()) {
+            impl.uncharge(data.length);
+        }
+        outOfOrder.clear();
+        messageEnds.clear();
+        skips.clear();
+    }
+
+    /**
+     * Called by the reader when it closes the input stream. The data delivered but not read is
+     * dropped, and so is whatever the peer sends on the stream from now on.
+     */
+    void closeInput() {
+        inputClosed = true;
+        byte[] data;
+        while ((data = inOrder.poll()) != null) {
+            impl.uncharge(data.length);
+        }
+        impl.retireIfDone(this);
+    }
+
+    /**
+     * Called by the Sender thread once it has cut the segment which ends the stream.
+     */
+    void outputFinished() {
+        outputFinished = true;
+        impl.retireIfDone(this);
+    }
+
+    /**
+     * The connection is over: the reader gets what is delivered already and then the end of the stream.
+     */
+    void finish() {
+        inOrder.close();
+    }
+
+    /**
+     * The connection is aborted: the reader and the writer fail, see {@link #forget} for the data held back.
+     */
+    void abort() {
+        inOrder.close();
+        if (output != null) {
+            output.abort();
+        }
+    }
+
+    void trim() {
+        inOrder.trim();
+        if (output != null) {
+            output.trim();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TOUStream <" + id + " of " + impl + '>';
+    }
+}
@@ -32,14 +32,28 @@ public class TOUSystemMessage extends TOUSegment {
     }
 
     TOUSystemMessage(TOUSegment segment, TCPSegmentType type) {
-        super(new TCPSegment(segment.tcpSegment.header()), segment.sourceAddress, segment.destinationAddress);
+        this(segment, type, false);
+    }
+
+    /**
+     * @param withData whether the data is copied too, only the SYNs and SYNACKs of fast open have any
+     */
+    TOUSystemMessage(TOUSegment segment, TCPSegmentType type, boolean withData) {
+        super(withData ? new TCPSegment(segment.tcpSegment) : new TCPSegment(segment.tcpSegment.header()),
+                segment.sourceAddress, segment.destinationAddress);
+        this.type = type;
+    }
+
+    TOUSystemMessage(TCPSegment tcpSegment, TCPSegmentType type,
+                     InetAddress sourceAddress, InetAddress destinationAddress, long timeout) {
+        super(tcpSegment, sourceAddress, destinationAddress, timeout);
         this.type = type;
     }
 
     TOUSystemMessage(TCPSegmentType type,
                      InetAddress sourceAddress, int sourcePort,
                      InetAddress destinationAddress, int destinationPort,
-                     int systemMessage, long timeout) {
+                     long systemMessage, long timeout) {
         this(type, sourceAddress, sourcePort, destinationAddress, destinationPort,
                 sequencePart(systemMessage), ackPart(systemMessage), timeout);
     }
@@ -47,7 +61,7 @@ public class TOUSystemMessage extends TOUSegment {
     TOUSystemMessage(TCPSegmentType type,
                      InetAddress sourceAddress, int sourcePort,
                      InetAddress destinationAddress, int destinationPort,
-                     short sequenceNumber, short ackNumber,
+                     int sequenceNumber, int ackNumber,
                      long timeout) {
         super(new TCPSegment(), sourceAddress, destinationAddress, timeout);
         this.type = type;
@@ -58,12 +72,12 @@ public class TOUSystemMessage extends TOUSegment {
         super.ackNumber(ackNumber);
     }
 
-    private static short sequencePart(int systemMessage) {
-        return (short) (systemMessage >> 16);
+    private static int sequencePart(long systemMessage) {
+        return (int) (systemMessage >> 32);
     }
 
-    private static short ackPart(int systemMessage) {
-        return (short) systemMessage;
+    private static int ackPart(long systemMessage) {
+        return (int) systemMessage;
     }
 
     boolean isEqualTo(TOUSystemMessage that) {
@@ -99,15 +113,15 @@ public class TOUSystemMessage extends TOUSegment {
         result = 31 * result + sourcePort();
         result = 31 * result + (destinationAddress != null ? destinationAddress.hashCode() : 0);
         result = 31 * result + destinationPort();
-        result = 31 * result + (int) sequenceNumber();
-        result = 31 * result + (int) ackNumber();
+        result = 31 * result + sequenceNumber();
+        result = 31 * result + ackNumber();
         return result;
     }
 
     @Override
     public String toString() {
-        return String.format("%16s[%s seq: %5d ack: %5d from %s:%5d to %s:%5d data offset: %3d size: %3d bytes]",
-                type, tcpSegment.typeByteToString(), sequenceNumber() & 0xffff, ackNumber() & 0xffff,
+        return String.format("%16s[%s seq: %10d ack: %10d from %s:%5d to %s:%5d data offset: %3d size: %3d bytes]",
+                type, tcpSegment.typeByteToString(), sequenceNumber() & 0xffffffffL, ackNumber() & 0xffffffffL,
                 sourceAddress, sourcePort(), destinationAddress, destinationPort(),
                 tcpSegment.dataOffset(), tcpSegment.size());
     }
@@ -0,0 +1,59 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Connections which have been closed recently, remembered for a fixed time instead of their impls,
+ * so that a late retransmission of the peer's FIN is acknowledged rather than answered with a reset.
+ * <p>
+ * An entry is just the peer address and its expiration time. All entries live for the same time,
+ * so they expire in insertion order and are purged from the head of a FIFO.
+ */
+class TOUTimeWaitTable {
+    private final HashMap<InetSocketAddress, Long> expirations = new HashMap<>();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final long timeout;
+
+    TOUTimeWaitTable(long timeout) {
+        this.timeout = timeout;
+    }
+
+    synchronized void add(InetSocketAddress remote) {
+        long now = System.currentTimeMillis();
+        purge(now);
+        Entry entry = new Entry(remote, now + timeout);
+        expirations.put(remote, entry.expiration);
+        entries.add(entry);
+    }
+
+    synchronized boolean contains(InetSocketAddress remote) {
+        purge(System.currentTimeMillis());
+        return expirations.containsKey(remote);
+    }
+
+    synchronized int size() {
+        purge(System.currentTimeMillis());
+        return expirations.size();
+    }
+
+    private void purge(long now) {
+        Entry head;
+        while ((head = entries.peek()) != null && head.expiration <= now) {
+            entries.poll();
+            // the address may have been added again later
+            expirations.remove(head.remote, head.expiration);
+        }
+    }
+
+    private static final class Entry {
+        private final InetSocketAddress remote;
+        private final long expiration;
+
+        private Entry(InetSocketAddress remote, long expiration) {
+            this.remote = remote;
+            this.expiration = expiration;
+        }
+    }
+}
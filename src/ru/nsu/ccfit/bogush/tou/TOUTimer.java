@@ -0,0 +1,29 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single daemon thread shared by all connections for their timeouts.
+ * <p>
+ * Tasks must be short and must not block: they run one after another on the same thread.
+ */
+final class TOUTimer {
+    private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "TOUTimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // cancelled timeouts are the common case, do not let them pile up
+        EXECUTOR.setRemoveOnCancelPolicy(true);
+    }
+
+    private TOUTimer() {}
+
+    static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return EXECUTOR.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+}
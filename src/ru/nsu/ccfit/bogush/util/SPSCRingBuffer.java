@@ -0,0 +1,170 @@
+package ru.nsu.ccfit.bogush.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * <p>
+ * The consumer may park in {@link #take()} while the queue is empty. The producer
+ * unparks it only if it is actually parked, so an offer to a queue whose consumer
+ * is busy costs a couple of volatile accesses and no monitor handoff.
+ */
+public class SPSCRingBuffer<E> {
+    // allocated by the first offer and dropped by trim(), the consumer sees it through tail
+    private Object[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to read, written by consumer only
+    private final AtomicLong tail = new AtomicLong(); // next slot to write, written by producer only
+    private volatile Thread waiter;
+    private volatile boolean closed = false;
+
+    public SPSCRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer side. Publishes the element and wakes the consumer if it is parked.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(E e) {
+        if (!offerQuietly(e)) return false;
+        signal();
+        return true;
+    }
+
+    /**
+     * Producer side. Publishes the element but leaves the consumer parked, so that a batch
+     * of offers followed by {@link #signal()} costs a single wakeup.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offerQuietly(E e) {
+        if (e == null) throw new NullPointerException();
+
+        long t = tail.get();
+        if (t - head.get() > mask) return false;
+        if (buffer == null) {
+            buffer = new Object[mask + 1];
+        }
+        buffer[(int) t & mask] = e;
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side. Returns null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h == tail.get()) return null;
+        int index = (int) h & mask;
+        E e = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    /**
+     * Consumer side. Parks until an element is available or the queue is closed.
+     *
+     * @return null if the queue is closed and drained
+     */
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            if (closed) return poll();
+            waiter = Thread.currentThread();
+            if (isEmpty() && !closed) {
+                LockSupport.park(this);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Consumer side. Parks until an element is available, the queue is closed or the timeout elapses.
+     *
+     * @return null if the queue is closed and drained or on timeout, tell them apart with {@link #isClosed()}
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null) {
+            if (closed) return poll();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            waiter = Thread.currentThread();
+            if (isEmpty() && !closed) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Makes {@link #take()} return null once the remaining elements are consumed.
+     */
+    public void close() {
+        closed = true;
+        signal();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    /**
+     * Producer side. Drops the slots while the queue is empty, the next offer allocates them again.
+     * The consumer has stopped touching them once it has taken the last element.
+     *
+     * @return true if the slots were dropped
+     */
+    public boolean trim() {
+        if (buffer == null || !isEmpty()) return false;
+        buffer = null;
+        return true;
+    }
+
+    /**
+     * Producer side. Wakes the consumer if it is parked.
+     */
+    public void signal() {
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+}
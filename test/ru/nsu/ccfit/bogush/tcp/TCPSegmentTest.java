@@ -14,6 +14,7 @@ public class TCPSegmentTest {
     private static final TCPSegment synack = new TCPSegment();
     private static final TCPSegment fin = new TCPSegment();
     private static final TCPSegment finack = new TCPSegment();
+    private static final TCPSegment rst = new TCPSegment();
     private static final String customString = "Some information";
     private static final byte[] customData = customString.getBytes();
     private static final TCPSegment customPacket = new TCPSegment(customData.length);
@@ -26,6 +27,7 @@ public class TCPSegmentTest {
         finack.setACK(true);
         finack.setFIN(true);
         fin.setFIN(true);
+        rst.setRST(true);
 
         customPacket.data(customData);
     }
@@ -84,6 +86,58 @@ public class TCPSegmentTest {
         assertEquals(false, p.isFIN());
     }
 
+    @Test
+    public void setRST() throws Exception {
+        TCPSegment p = new TCPSegment();
+        assertEquals(false, p.isRST());
+        p.setRST(true);
+        assertEquals(true, p.isRST());
+        assertEquals(false, p.isSYN());
+        assertEquals(false, p.isACK());
+        assertEquals(false, p.isFIN());
+        p.setRST(false);
+        assertEquals(false, p.isRST());
+        p.setSYN(true);
+        p.setACK(true);
+        p.setFIN(true);
+        assertEquals(false, p.isRST());
+    }
+
+    @Test
+    public void setSACK() throws Exception {
+        TCPSegment p = new TCPSegment();
+        p.setACK(true);
+        p.setSACK(true);
+        assertEquals(true, p.isSACK());
+        assertEquals(true, p.isACK());
+        // an option of ACK, not a segment type of its own
+        assertEquals(TCPSegmentType.ACK, TCPSegmentType.typeOf(p));
+        p.setSACK(false);
+        assertEquals(false, p.isSACK());
+        assertEquals(ACK_BITMAP, p.flags());
+    }
+
+    @Test
+    public void leadingFrame() throws Exception {
+        int frameLength = HEADER_SIZE + FRAME_LENGTH_SIZE + customData.length;
+        ByteBuffer datagram = ByteBuffer.allocate(frameLength + rst.size());
+        datagram.put(customPacket.bytes(), 0, HEADER_SIZE);
+        markLeadingFrame(datagram, 0, frameLength);
+        datagram.position(HEADER_SIZE + FRAME_LENGTH_SIZE);
+        datagram.put(customData).put(rst.bytes());
+        assertFalse(customPacket.isMORE());
+
+        byte[] bytes = datagram.array();
+        assertEquals(frameLength, frameLength(bytes, 0, bytes.length));
+        assertEquals(rst.size(), frameLength(bytes, frameLength, rst.size()));
+        TCPSegment frame = new TCPSegment(bytes, 0, frameLength);
+        assertTrue(frame.isMORE());
+        assertArrayEquals(customData, frame.data());
+        // the length of a frame may not run past the datagram
+        assertEquals(-1, frameLength(bytes, 0, frameLength - 1));
+        assertEquals(-1, frameLength(bytes, 0, HEADER_SIZE - 1));
+    }
+
     @Test
     public void isACK() throws Exception {
         assertEquals(true, ack.isACK());
@@ -111,7 +165,37 @@ public class TCPSegmentTest {
         assertEquals(false, syn.isFIN());
         assertEquals(false, synack.isFIN());
         assertEquals(false, ack.isFIN());
+        assertEquals(false, rst.isFIN());
+    }
 
+    @Test
+    public void isRST() throws Exception {
+        assertEquals(true, rst.isRST());
+        assertEquals(false, syn.isRST());
+        assertEquals(false, synack.isRST());
+        assertEquals(false, ack.isRST());
+        assertEquals(false, fin.isRST());
+        assertEquals(false, finack.isRST());
+        assertEquals(false, empty.isRST());
+    }
+
+    @Test
+    public void typeOf() throws Exception {
+        assertEquals(TCPSegmentType.ORDINARY, TCPSegmentType.typeOf(empty));
+        assertEquals(TCPSegmentType.ACK, TCPSegmentType.typeOf(ack));
+        assertEquals(TCPSegmentType.SYNACK, TCPSegmentType.typeOf(synack));
+        assertEquals(TCPSegmentType.FINACK, TCPSegmentType.typeOf(finack));
+        assertEquals(TCPSegmentType.RST, TCPSegmentType.typeOf(rst));
+        TCPSegment p = new TCPSegment();
+        p.setRST(true);
+        p.setACK(true);
+        boolean wasException = false;
+        try {
+            TCPSegmentType.typeOf(p);
+        } catch (TCPUnknownSegmentTypeException e) {
+            wasException = true;
+        }
+        assertTrue(wasException);
     }
 
     @Test
@@ -122,6 +206,7 @@ public class TCPSegmentTest {
         assertEquals(SYN_BITMAP, syn.flags());
         assertEquals(SYN_BITMAP | ACK_BITMAP, synack.flags());
         assertEquals(FIN_BITMAP | ACK_BITMAP, finack.flags());
+        assertEquals(RST_BITMAP, rst.flags());
         TCPSegment p = new TCPSegment();
         assertEquals(0, p.flags());
         p.flags(ACK_BITMAP);
@@ -194,7 +279,7 @@ public class TCPSegmentTest {
     public void sequenceNumber() throws Exception {
         TCPSegment p = new TCPSegment();
         assertEquals(0, p.sequenceNumber());
-        p.sequenceNumber((short) 1984);
+        p.sequenceNumber(1984);
         assertEquals(1984, p.sequenceNumber());
         assertEquals(0, p.sourcePort());
         assertEquals(0, p.destinationPort());
@@ -205,22 +290,45 @@ public class TCPSegmentTest {
     public void ackNumber() throws Exception {
         TCPSegment p = new TCPSegment();
         assertEquals(0, p.ackNumber());
-        p.ackNumber((short) 1984);
+        p.ackNumber(1984);
         assertEquals(1984, p.ackNumber());
         assertEquals(0, p.sourcePort());
         assertEquals(0, p.destinationPort());
         assertEquals(0, p.sequenceNumber());
     }
 
+    @Test
+    public void bigSequenceNumbers() throws Exception {
+        TCPSegment p = new TCPSegment();
+        p.sequenceNumber(0x89abcdef);
+        p.ackNumber(0x7fffffff);
+        assertEquals(0x89abcdef, p.sequenceNumber());
+        assertEquals(0x7fffffff, p.ackNumber());
+        assertEquals(0, p.window());
+        assertEquals(0, p.flags());
+    }
+
+    @Test
+    public void window() throws Exception {
+        TCPSegment p = new TCPSegment();
+        assertEquals(0, p.window());
+        p.window(65535);
+        assertEquals(65535, p.window());
+        assertEquals(0, p.sequenceNumber());
+        assertEquals(0, p.ackNumber());
+        assertEquals(0, p.flags());
+        assertEquals(HEADER_SIZE, p.dataOffset());
+    }
+
     @Test
     public void sequenceAndAckNumbers() throws Exception {
         TCPSegment p = new TCPSegment();
         assertEquals(0, p.sequenceAndAckNumbers());
-        int i = ByteBuffer.allocate(4).putShort((short) 1984).putShort((short) 4891).getInt(0);
+        long i = ByteBuffer.allocate(8).putInt(1984).putInt(-4891).getLong(0);
         p.sequenceAndAckNumbers(i);
         assertEquals(i, p.sequenceAndAckNumbers());
         assertEquals(1984, p.sequenceNumber());
-        assertEquals(4891, p.ackNumber());
+        assertEquals(-4891, p.ackNumber());
         assertEquals(0, p.sourcePort());
         assertEquals(0, p.destinationPort());
     }
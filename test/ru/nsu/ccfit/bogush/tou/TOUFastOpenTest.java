@@ -0,0 +1,27 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TOUFastOpenTest {
+    @Test
+    public void cookie() throws Exception {
+        InetAddress client = InetAddress.getByAddress(new byte[] {10, 0, 0, 1});
+        InetAddress other = InetAddress.getByAddress(new byte[] {10, 0, 0, 2});
+        byte[] cookie = TOUFastOpen.cookie(client);
+        assertEquals(TOUFastOpen.COOKIE_SIZE, cookie.length);
+        assertArrayEquals(cookie, TOUFastOpen.cookie(client));
+
+        assertTrue(TOUFastOpen.isValid(client, cookie));
+        // a cookie is bound to the address it was given to
+        assertFalse(TOUFastOpen.isValid(other, cookie));
+        assertFalse(TOUFastOpen.isValid(client, null));
+        assertFalse(TOUFastOpen.isValid(client, Arrays.copyOf(cookie, TOUFastOpen.COOKIE_SIZE - 1)));
+        cookie[0] ^= 1;
+        assertFalse(TOUFastOpen.isValid(client, cookie));
+    }
+}
@@ -0,0 +1,89 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class TOUMetricsCacheTest {
+    private static final InetAddress first = InetAddress.getLoopbackAddress();
+    private static final InetAddress second = address(10, 0, 0, 1);
+    private static final InetAddress third = address(10, 0, 0, 2);
+
+    private static InetAddress address(int... bytes) {
+        byte[] address = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; ++i) {
+            address[i] = (byte) bytes[i];
+        }
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void update() throws Exception {
+        TOUMetricsCache cache = new TOUMetricsCache(4, 10_000);
+        assertNull(cache.get(first));
+        cache.update(first, 80, 20, 64);
+        TOUMetricsCache.Metrics metrics = cache.get(first);
+        assertEquals(80, metrics.smoothedRtt);
+        assertEquals(20, metrics.rttVariation);
+        assertEquals(64, metrics.receiveWindow);
+
+        // a larger RTT moves the entry by an eighth, a smaller one replaces it
+        cache.update(first, 160, 10, 0);
+        metrics = cache.get(first);
+        assertEquals(90, metrics.smoothedRtt);
+        assertEquals(20, metrics.rttVariation);
+        assertEquals(64, metrics.receiveWindow);
+        cache.update(first, 40, 10, 32);
+        assertEquals(40, cache.get(first).smoothedRtt);
+        assertEquals(32, cache.get(first).receiveWindow);
+
+        // a connection which measured nothing keeps the RTT
+        cache.update(first, -1, 0, 0);
+        assertEquals(40, cache.get(first).smoothedRtt);
+    }
+
+    @Test
+    public void leastRecentlyUsed() throws Exception {
+        TOUMetricsCache cache = new TOUMetricsCache(2, 10_000);
+        cache.update(first, 10, 5, 0);
+        cache.update(second, 20, 5, 0);
+        assertNotNull(cache.get(first));
+        cache.update(third, 30, 5, 0);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(second));
+        assertNotNull(cache.get(third));
+    }
+
+    @Test
+    public void expiration() throws Exception {
+        TOUMetricsCache cache = new TOUMetricsCache(2, 50);
+        cache.update(first, 10, 5, 16);
+        Thread.sleep(100);
+        assertNull(cache.get(first));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void fastOpenCookie() throws Exception {
+        TOUMetricsCache cache = new TOUMetricsCache(4, 10_000);
+        byte[] cookie = {1, 2, 3, 4, 5, 6, 7, 8};
+        // a cookie comes before the first connection to the host ends
+        cache.updateFastOpenCookie(first, cookie);
+        TOUMetricsCache.Metrics metrics = cache.get(first);
+        assertArrayEquals(cookie, metrics.fastOpenCookie);
+        assertEquals(-1, metrics.smoothedRtt);
+
+        // the metrics and the cookie do not overwrite each other
+        cache.update(first, 80, 20, 64);
+        assertArrayEquals(cookie, cache.get(first).fastOpenCookie);
+        cache.updateFastOpenCookie(first, cookie);
+        assertEquals(80, cache.get(first).smoothedRtt);
+    }
+}
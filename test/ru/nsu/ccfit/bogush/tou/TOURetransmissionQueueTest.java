@@ -0,0 +1,123 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import org.junit.Test;
+import ru.nsu.ccfit.bogush.tcp.TCPSegment;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static ru.nsu.ccfit.bogush.tou.TOUConstants.INITIAL_RTO;
+
+public class TOURetransmissionQueueTest {
+    private static final int ISN = -2; // wraps around after two bytes
+
+    private static TOUSegment segment(int sequenceNumber) {
+        TCPSegment tcpSegment = new TCPSegment(1);
+        tcpSegment.sequenceNumber(sequenceNumber);
+        return new TOUSegment(tcpSegment, InetAddress.getLoopbackAddress(), InetAddress.getLoopbackAddress());
+    }
+
+    private static TOURetransmissionQueue queue(int capacity) {
+        return new TOURetransmissionQueue(new TOUSocketImpl(), ISN, capacity, INITIAL_RTO);
+    }
+
+    @Test
+    public void cumulative() throws Exception {
+        TOURetransmissionQueue queue = queue(4);
+        TOUSegment[] segments = new TOUSegment[3];
+        for (int i = 0; i < segments.length; ++i) {
+            segments[i] = segment(ISN + i);
+            queue.add(segments[i]);
+        }
+        assertEquals(3, queue.size());
+
+        assertEquals(2, queue.acknowledge(ISN + 2));
+        assertTrue(segments[0].isCancelled());
+        assertTrue(segments[1].isCancelled());
+        assertFalse(segments[2].isCancelled());
+        assertEquals(1, queue.size());
+
+        // stale and bogus ACKs change nothing
+        assertEquals(0, queue.acknowledge(ISN));
+        assertEquals(0, queue.acknowledge(ISN + 5));
+        assertEquals(1, queue.size());
+
+        assertEquals(1, queue.acknowledge(ISN + 3));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void selective() throws Exception {
+        TOURetransmissionQueue queue = queue(4);
+        TOUSegment first = segment(ISN);
+        TOUSegment second = segment(ISN + 1);
+        TOUSegment third = segment(ISN + 2);
+        queue.add(first);
+        queue.add(second);
+        queue.add(third);
+
+        assertTrue(queue.acknowledgeSelectively(ISN + 1));
+        assertFalse(queue.acknowledgeSelectively(ISN + 1));
+        assertTrue(second.isCancelled());
+        assertFalse(first.isCancelled());
+        // the hole keeps its place until the cumulative ACK passes it
+        assertEquals(3, queue.size());
+
+        assertEquals(1, queue.acknowledge(ISN + 2));
+        assertEquals(1, queue.size());
+        assertFalse(third.isCancelled());
+    }
+
+    @Test
+    public void full() throws Exception {
+        TOURetransmissionQueue queue = queue(2);
+        queue.add(segment(ISN));
+        queue.add(segment(ISN + 1));
+        assertTrue(queue.isFull());
+        queue.acknowledge(ISN + 1);
+        assertFalse(queue.isFull());
+        queue.add(segment(ISN + 2));
+        assertTrue(queue.isFull());
+    }
+
+    @Test
+    public void repacketize() throws Exception {
+        TOURetransmissionQueue queue = queue(8);
+        TOUSegment[] segments = new TOUSegment[4];
+        for (int i = 0; i < segments.length; ++i) {
+            segments[i] = segment(ISN + i);
+            queue.add(segments[i]);
+        }
+        assertTrue(queue.acknowledgeSelectively(ISN + 2));
+
+        // the hole before the selectively acknowledged segment goes out as one segment
+        List<TOUSegment> lost = queue.collectLost();
+        assertEquals(2, lost.size());
+        assertEquals(ISN, lost.get(0).sequenceNumber());
+        assertEquals(2, lost.get(0).tcpSegment.dataSize());
+        assertTrue(segments[0].isCancelled());
+        assertTrue(segments[1].isCancelled());
+        assertEquals(ISN + 3, lost.get(1).sequenceNumber());
+        assertEquals(3, queue.size());
+
+        assertEquals(2, queue.acknowledge(ISN + 4));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void outOfOrder() throws Exception {
+        TOURetransmissionQueue queue = queue(4);
+        queue.add(segment(ISN + 1));
+    }
+
+    @Test
+    public void clear() throws Exception {
+        TOURetransmissionQueue queue = queue(4);
+        TOUSegment segment = segment(ISN);
+        queue.add(segment);
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertTrue(segment.isCancelled());
+    }
+}
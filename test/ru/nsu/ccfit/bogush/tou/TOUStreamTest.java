@@ -0,0 +1,137 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TOUStreamTest {
+    @Test
+    public void frame() throws Exception {
+        byte[] frame = TOUStream.frame(TOUStream.MAX_ID, -2, true, true);
+        assertEquals(TOUStream.HEADER_SIZE, frame.length);
+        assertEquals(TOUStream.MAX_ID, TOUStream.frameId(frame, 0));
+        assertEquals(-2, TOUStream.frameOffset(frame, 0));
+        assertTrue(TOUStream.frameFin(frame, 0));
+        assertTrue(TOUStream.frameEom(frame, 0));
+        assertFalse(TOUStream.frameAbandon(frame, 0));
+
+        frame = TOUStream.frame(3, 1 << 20, false, true);
+        assertEquals(3, TOUStream.frameId(frame, 0));
+        assertEquals(1 << 20, TOUStream.frameOffset(frame, 0));
+        assertFalse(TOUStream.frameFin(frame, 0));
+        assertTrue(TOUStream.frameEom(frame, 0));
+
+        frame = TOUStream.frame(3, 0, true, false);
+        assertTrue(TOUStream.frameFin(frame, 0));
+        assertFalse(TOUStream.frameEom(frame, 0));
+    }
+
+    @Test
+    public void ordering() throws Exception {
+        TOUStream stream = new TOUStream(new TOUSocketImpl(), 1, -2, 8);
+
+        // the gap is on this stream, the data waits for it
+        assertTrue(stream.receive(0, new byte[] {3, 4}, true, false));
+        assertTrue(stream.inOrder().isEmpty());
+
+        // a retransmission which overlaps what is delivered already
+        assertTrue(stream.receive(-2, new byte[] {1}, false, false));
+        assertTrue(stream.receive(-2, new byte[] {1, 2}, false, false));
+        assertArrayEquals(new byte[] {1}, stream.inOrder().poll());
+        assertArrayEquals(new byte[] {2}, stream.inOrder().poll());
+        assertArrayEquals(new byte[] {3, 4}, stream.inOrder().poll());
+
+        // the frame which ends the stream is delivered
+        assertNull(stream.inOrder().poll());
+        assertTrue(stream.inOrder().isClosed());
+    }
+
+    @Test
+    public void messages() throws Exception {
+        TOUStream stream = new TOUStream(new TOUSocketImpl(), 1, 0, 8);
+
+        // the second message comes before the last piece of the first one
+        assertTrue(stream.receive(3, new byte[] {4}, false, true));
+        assertTrue(stream.receive(0, new byte[] {1, 2}, false, false));
+        assertArrayEquals(new byte[] {1, 2}, stream.inOrder().poll());
+        assertNull(stream.inOrder().poll());
+
+        assertTrue(stream.receive(2, new byte[] {3}, false, true));
+        // a retransmission of the end of a delivered message is not delivered again
+        assertTrue(stream.receive(2, new byte[] {3}, false, true));
+        assertArrayEquals(new byte[] {3}, stream.inOrder().poll());
+        assertSame(TOUStream.MESSAGE_END, stream.inOrder().poll());
+        assertArrayEquals(new byte[] {4}, stream.inOrder().poll());
+        assertSame(TOUStream.MESSAGE_END, stream.inOrder().poll());
+        assertNull(stream.inOrder().poll());
+    }
+
+    @Test
+    public void skip() throws Exception {
+        TOUStream stream = new TOUStream(new TOUSocketImpl(), 1, 0, 8);
+
+        // the second piece of the first message is lost, the second message is held behind it
+        assertTrue(stream.receive(0, new byte[] {1, 2}, false, false));
+        assertTrue(stream.receive(4, new byte[] {5}, false, true));
+        assertTrue(stream.skip(0, 4, false));
+        assertArrayEquals(new byte[] {1, 2}, stream.inOrder().poll());
+        assertSame(TOUStream.MESSAGE_ABANDONED, stream.inOrder().poll());
+        assertArrayEquals(new byte[] {5}, stream.inOrder().poll());
+        assertSame(TOUStream.MESSAGE_END, stream.inOrder().poll());
+
+        // the lost piece comes after all
+        assertTrue(stream.receive(2, new byte[] {3, 4}, false, true));
+        assertNull(stream.inOrder().poll());
+
+        // the last message is abandoned before any of it came
+        assertTrue(stream.skip(5, 7, true));
+        assertNull(stream.inOrder().poll());
+        assertTrue(stream.inOrder().isClosed());
+
+        byte[] skip = TOUStream.skip(3, 5, 7, true, 1000);
+        assertEquals(TOUStream.SKIP_SIZE, skip.length);
+        assertEquals(3, TOUStream.frameId(skip, 0));
+        assertEquals(7, TOUStream.frameOffset(skip, 0));
+        assertTrue(TOUStream.frameFin(skip, 0));
+        assertTrue(TOUStream.frameAbandon(skip, 0));
+        assertFalse(TOUStream.frameEom(skip, 0));
+        assertEquals(1000, TOUStream.skipLength(skip, 0));
+        assertEquals(5, TOUStream.skipStart(skip, 0));
+    }
+
+    @Test
+    public void skipAfterMissing() throws Exception {
+        TOUStream stream = new TOUStream(new TOUSocketImpl(), 1, 0, 8);
+
+        // the second message is abandoned while the first one, which is reliable, is still missing
+        assertTrue(stream.receive(4, new byte[] {5}, false, false));
+        assertTrue(stream.skip(4, 6, false));
+        assertTrue(stream.receive(6, new byte[] {7}, false, true));
+        assertNull(stream.inOrder().poll());
+
+        // the first message is delivered whole, then the skip drops what came of the second one
+        assertTrue(stream.receive(0, new byte[] {1, 2, 3, 4}, false, true));
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, stream.inOrder().poll());
+        assertSame(TOUStream.MESSAGE_END, stream.inOrder().poll());
+        assertArrayEquals(new byte[] {7}, stream.inOrder().poll());
+        assertSame(TOUStream.MESSAGE_END, stream.inOrder().poll());
+        assertNull(stream.inOrder().poll());
+    }
+
+    @Test
+    public void streamLimit() throws Exception {
+        // a connecting socket, the streams of the peer have even ids
+        TOUSocketImpl impl = new TOUSocketImpl();
+        assertEquals(0, impl.openPeerStreams());
+        assertEquals(0, impl.peerStreamsOpening(0));
+        assertEquals(0, impl.peerStreamsOpening(3));
+        assertEquals(1, impl.peerStreamsOpening(2));
+
+        // the frame of the last stream the peer may open opens all the lower ones too
+        byte[] last = TOUStream.frame(2 * TOUConstants.MAX_STREAMS, 0, false, false);
+        assertEquals(TOUConstants.MAX_STREAMS, impl.peerStreamsOpening(TOUStream.frameId(last, 0)));
+
+        byte[] over = TOUStream.frame(2 * TOUConstants.MAX_STREAMS + 2, 0, false, false);
+        assertTrue(impl.peerStreamsOpening(TOUStream.frameId(over, 0)) > TOUConstants.MAX_STREAMS);
+    }
+}
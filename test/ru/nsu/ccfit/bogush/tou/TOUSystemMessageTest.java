@@ -35,7 +35,7 @@ public class TOUSystemMessageTest {
         dataSegment.data(data);
         dataSegment.sourcePort(PORT_A);
         dataSegment.destinationPort(PORT_A);
-        dataSegment.sequenceNumber((short) 42);
+        dataSegment.sequenceNumber(42);
     }
     private static final TOUSegment segment = TOUFactory.packIntoTOU(dataSegment, IP_A, IP_B);
 
@@ -45,7 +45,7 @@ public class TOUSystemMessageTest {
     private static final TOUSystemMessage fin = TOUFactory.createSYNorFIN(FIN, IP_A, PORT_A, IP_B, PORT_B);
     private static final TOUSystemMessage finack = TOUFactory.createSYNACKorFINACK(IP_B, PORT_B, fin);
     private static final TOUSystemMessage ack2finack = TOUFactory.createACK(finack);
-    private static final TOUSystemMessage ack2segment = TOUFactory.createACK(segment);
+    private static final TOUSystemMessage ack2segment = TOUFactory.createSACK(segment, 43);
     private static final List<TOUSystemMessage> all = Arrays.asList(syn, synack, ack2synack, fin, finack, ack2finack, ack2segment);
 
     @Test
@@ -179,7 +179,7 @@ public class TOUSystemMessageTest {
             diffDst.destinationPort(s.destinationPort() + 1);
 
             TOUSystemMessage diffAck = new TOUSystemMessage(s);
-            diffAck.ackNumber((short) (s.ackNumber() + 1));
+            diffAck.ackNumber(s.ackNumber() + 1);
 
             TOUSystemMessage[] different = new TOUSystemMessage[]{
                     s,
@@ -211,10 +211,10 @@ public class TOUSystemMessageTest {
             diffDst.destinationPort(s.destinationPort() + 1);
 
             TOUSystemMessage diffAck = new TOUSystemMessage(s);
-            diffAck.ackNumber((short) (s.ackNumber() + 1));
+            diffAck.ackNumber(s.ackNumber() + 1);
 
             TOUSystemMessage diffSeq = new TOUSystemMessage(s);
-            diffSeq.sequenceNumber((short) (s.sequenceNumber() + 1));
+            diffSeq.sequenceNumber(s.sequenceNumber() + 1);
 
             TOUSystemMessage[] different = new TOUSystemMessage[]{
                     s,
@@ -0,0 +1,47 @@
+package ru.nsu.ccfit.bogush.tou;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class TOUTimeWaitTableTest {
+    private static final InetSocketAddress first = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1984);
+    private static final InetSocketAddress second = new InetSocketAddress(InetAddress.getLoopbackAddress(), 4891);
+
+    @Test
+    public void contains() throws Exception {
+        TOUTimeWaitTable table = new TOUTimeWaitTable(10_000);
+        assertFalse(table.contains(first));
+        table.add(first);
+        assertTrue(table.contains(first));
+        assertFalse(table.contains(second));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void expiration() throws Exception {
+        TOUTimeWaitTable table = new TOUTimeWaitTable(50);
+        table.add(first);
+        table.add(second);
+        assertEquals(2, table.size());
+        Thread.sleep(100);
+        assertFalse(table.contains(first));
+        assertFalse(table.contains(second));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void addAgain() throws Exception {
+        TOUTimeWaitTable table = new TOUTimeWaitTable(100);
+        table.add(first);
+        Thread.sleep(60);
+        table.add(first);
+        Thread.sleep(60);
+        // the first entry has expired, the second one has not
+        assertTrue(table.contains(first));
+        assertEquals(1, table.size());
+    }
+}
@@ -0,0 +1,116 @@
+package ru.nsu.ccfit.bogush.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SPSCRingBufferTest {
+    @Test
+    public void capacity() throws Exception {
+        assertEquals(1, new SPSCRingBuffer<Integer>(1).capacity());
+        assertEquals(8, new SPSCRingBuffer<Integer>(5).capacity());
+        assertEquals(256, new SPSCRingBuffer<Integer>(256).capacity());
+    }
+
+    @Test
+    public void offerAndPoll() throws Exception {
+        SPSCRingBuffer<Integer> ring = new SPSCRingBuffer<>(4);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+        assertEquals(0, ring.remainingCapacity());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(5));
+        assertEquals(Integer.valueOf(5), ring.poll());
+    }
+
+    @Test
+    public void trim() throws Exception {
+        SPSCRingBuffer<Integer> ring = new SPSCRingBuffer<>(4);
+        assertFalse(ring.trim());
+        ring.offer(1);
+        ring.offer(2);
+        assertFalse(ring.trim());
+        ring.poll();
+        ring.poll();
+        assertTrue(ring.trim());
+        assertEquals(4, ring.remainingCapacity());
+        // the next offer allocates the slots again, the indices go on where they were
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(Integer.valueOf(0), ring.poll());
+    }
+
+    @Test
+    public void takeReturnsNullWhenClosedAndDrained() throws Exception {
+        SPSCRingBuffer<Integer> ring = new SPSCRingBuffer<>(4);
+        ring.offer(1);
+        ring.close();
+        assertEquals(Integer.valueOf(1), ring.take());
+        assertNull(ring.take());
+    }
+
+    @Test(timeout = 10000)
+    public void pollTimesOut() throws Exception {
+        SPSCRingBuffer<Integer> ring = new SPSCRingBuffer<>(4);
+        long start = System.nanoTime();
+        assertNull(ring.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertFalse(ring.isClosed());
+
+        ring.offer(1);
+        assertEquals(Integer.valueOf(1), ring.poll(50, TimeUnit.MILLISECONDS));
+        ring.close();
+        assertNull(ring.poll(1, TimeUnit.DAYS));
+    }
+
+    @Test(timeout = 10000)
+    public void offerQuietlyThenSignal() throws Exception {
+        SPSCRingBuffer<Integer> ring = new SPSCRingBuffer<>(4);
+        Thread consumer = new Thread(() -> {
+            try {
+                assertEquals(Integer.valueOf(0), ring.take());
+                assertEquals(Integer.valueOf(1), ring.take());
+            } catch (InterruptedException e) {
+                fail();
+            }
+        });
+        consumer.start();
+        assertTrue(ring.offerQuietly(0));
+        assertTrue(ring.offerQuietly(1));
+        ring.signal();
+        consumer.join();
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void handoff() throws Exception {
+        final int count = 1_000_000;
+        SPSCRingBuffer<Integer> ring = new SPSCRingBuffer<>(16);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!ring.offer(i)) {
+                    Thread.yield();
+                }
+            }
+            ring.close();
+        });
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.valueOf(i), ring.take());
+        }
+        assertNull(ring.take());
+        producer.join();
+    }
+}